@@ -0,0 +1,170 @@
+/*
+ * Copyright (c) 2026 CnCNet tunnel contributors
+ *
+ * Permission to use, copy, modify, and distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+package org.cncnet.tunnel;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+
+/**
+ * Checks how much a forwarding worker allocates per datagram, and exits
+ * with an error if it is more than the receive path is allowed to.
+ *
+ * DatagramChannel.receive() hands back the sender as a new
+ * InetSocketAddress whenever it differs from the previous datagram on the
+ * channel, and there is no public API to receive without it. Two players
+ * of one game sending in turns change the sender on every datagram, so that
+ * object is the one allocation the worker can't avoid. Everything the
+ * tunnel does on top of it has to allocate nothing.
+ *
+ * Two runs are checked over loopback:
+ *
+ *   one sender    only the channel's cached sender, the worker has to
+ *                 allocate nothing at all
+ *   interleaved   both players sending in turns, at most the cost of one
+ *                 sender object per datagram
+ *
+ * Run it with bench/run.sh check.
+ */
+public class AllocationCheck {
+
+    private static final int WARMUP = 20000;
+    private static final int DATAGRAMS = 100000;
+    private static final int WINDOW = 32;
+    // per run, for one-off allocations like a LongAdder growing its cells
+    private static final long ALLOWANCE = 1024;
+    // per datagram, for how the JDK builds the sender differing a little from senderCost()
+    private static final double SLACK = 8;
+
+    public static void main(String[] args) throws Exception {
+        int port = Benchmarks.freePort();
+        TunnelController controller = Benchmarks.controller(port, 8);
+        Forwarder forwarder = new Forwarder(0, controller, port, false, new BufferPool(4, 4096), new SourceFilter(0), 64, 0);
+        Thread worker = new Thread(forwarder, "Forwarder-0");
+        worker.setDaemon(true);
+        worker.start();
+
+        Session session = controller.reserve(2);
+        short a = session.getClientId(0);
+        short b = session.getClientId(1);
+        InetSocketAddress tunnel = new InetSocketAddress("127.0.0.1", port);
+
+        DatagramChannel chanA = DatagramChannel.open();
+        DatagramChannel chanB = DatagramChannel.open();
+        chanA.bind(new InetSocketAddress("127.0.0.1", 0));
+        chanB.bind(new InetSocketAddress("127.0.0.1", 0));
+
+        // both ends have to be bound before anything is forwarded to them, the first one is dropped
+        ByteBuffer out = ByteBuffer.allocate(64);
+        out.putShort(b).putShort(a).flip();
+        chanB.send(out, tunnel);
+        out.clear();
+        out.putShort(a).putShort(b).flip();
+        chanA.send(out, tunnel);
+        chanB.receive(ByteBuffer.allocate(64));
+
+        if (Benchmarks.allocatedBytes(worker.getId()) < 0) {
+            System.out.println("This JVM can't tell how much a thread allocated, nothing checked.");
+            System.exit(0);
+        }
+
+        double sender = senderCost();
+        System.out.printf("sender object                %8.2f bytes%n", sender);
+
+        run(worker, chanA, chanB, a, b, tunnel, false, WARMUP);
+        long single = run(worker, chanA, chanB, a, b, tunnel, false, DATAGRAMS);
+        System.out.printf("one sender                   %8d bytes for %d datagrams%n", single, DATAGRAMS);
+
+        run(worker, chanA, chanB, a, b, tunnel, true, WARMUP);
+        double interleaved = Math.max(run(worker, chanA, chanB, a, b, tunnel, true, DATAGRAMS) - ALLOWANCE, 0) / (double)DATAGRAMS;
+        System.out.printf("interleaved senders          %8.2f bytes per datagram%n", interleaved);
+
+        boolean ok = true;
+        if (single > ALLOWANCE) {
+            System.out.printf("FAIL: one sender allocates, more than %d bytes in total%n", ALLOWANCE);
+            ok = false;
+        }
+        if (interleaved > sender + SLACK) {
+            System.out.printf("FAIL: interleaved senders allocate more than one sender object (%.2f bytes) per datagram%n", sender + SLACK);
+            ok = false;
+        }
+        if (ok) {
+            System.out.println("OK");
+        }
+
+        chanA.close();
+        chanB.close();
+        System.exit(ok ? 0 : 1);
+    }
+
+    // sends datagrams through the worker, returns how many bytes the worker allocated
+    private static long run(Thread worker, DatagramChannel chanA, DatagramChannel chanB, short a, short b,
+            InetSocketAddress tunnel, boolean interleaved, int count) throws Exception {
+        ByteBuffer out = ByteBuffer.allocateDirect(128);
+        ByteBuffer in = ByteBuffer.allocateDirect(4096);
+        byte[] payload = new byte[56];
+
+        long allocatedBefore = Benchmarks.allocatedBytes(worker.getId());
+
+        for (int sent = 0; sent < count; sent += WINDOW) {
+            int toA = 0;
+            int toB = 0;
+            for (int i = 0; i < WINDOW; i++) {
+                boolean fromA = !interleaved || (i & 1) == 0;
+                out.clear();
+                out.putShort(fromA ? a : b).putShort(fromA ? b : a).putInt(sent + i).put(payload).flip();
+                (fromA ? chanA : chanB).send(out, tunnel);
+                if (fromA) {
+                    toB++;
+                } else {
+                    toA++;
+                }
+            }
+            for (int i = 0; i < toB; i++) {
+                in.clear();
+                chanB.receive(in);
+            }
+            for (int i = 0; i < toA; i++) {
+                in.clear();
+                chanA.receive(in);
+            }
+        }
+
+        return Benchmarks.allocatedBytes(worker.getId()) - allocatedBefore;
+    }
+
+    // what the channel builds for a new sender: the raw address, the InetAddress and the InetSocketAddress
+    private static double senderCost() throws Exception {
+        long thread = Thread.currentThread().getId();
+        byte[] raw = { 127, 0, 0, 1 };
+        long sink = 0;
+
+        for (int round = 0; round < 2; round++) {
+            long before = Benchmarks.allocatedBytes(thread);
+            for (int i = 0; i < 10000; i++) {
+                InetSocketAddress sender = new InetSocketAddress(InetAddress.getByAddress(raw.clone()), i);
+                sink += sender.getPort();
+            }
+            long allocated = Benchmarks.allocatedBytes(thread) - before;
+            if (round == 1) {
+                Benchmarks.sink += sink;
+                return allocated / 10000.0;
+            }
+        }
+        return 0;
+    }
+}
@@ -0,0 +1,362 @@
+/*
+ * Copyright (c) 2026 CnCNet tunnel contributors
+ *
+ * Permission to use, copy, modify, and distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+package org.cncnet.tunnel;
+
+import java.lang.management.ManagementFactory;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Micro benchmarks for the relay hot path and the control plane. Every
+ * benchmark is warmed up and then measured over several fixed length
+ * iterations, the mean and spread are printed together with how many bytes
+ * the measured thread allocated per operation.
+ *
+ * Run everything with bench/run.sh, or a single benchmark by passing its
+ * name (lookup, forward, reserve, reaper).
+ */
+public class Benchmarks {
+
+    private static final int WARMUP = 3;
+    private static final int ITERATIONS = 5;
+    private static final long ITERATION_NANOS = 1000000000L;
+
+    private interface Op {
+        // performs n operations, the return value is only there to keep the JIT honest
+        long run(int n) throws Exception;
+    }
+
+    static volatile long sink;
+
+    public static void main(String[] args) throws Exception {
+        String only = args.length > 0 ? args[0] : null;
+
+        System.out.println("CnCNet tunnel benchmarks, " + System.getProperty("java.vm.name") + " " + System.getProperty("java.version")
+            + ", " + Runtime.getRuntime().availableProcessors() + " cpus");
+
+        if (only == null || only.equals("lookup"))
+            lookup();
+        if (only == null || only.equals("forward"))
+            forward();
+        if (only == null || only.equals("reserve"))
+            reserve();
+        if (only == null || only.equals("reaper"))
+            reaper();
+
+        System.exit(0);
+    }
+
+    // getClient() for both ends and isKnownClient(), with a full 64k client table
+    private static void lookup() throws Exception {
+        final TunnelController controller = controller(0, IdAllocator.SIZE);
+        List<Session> sessions = new ArrayList<Session>();
+        Session s;
+        while ((s = controller.reserve(8)) != null) {
+            sessions.add(s);
+        }
+
+        // mostly friends, some strangers like the real thing
+        Random random = new Random(1);
+        final short[] from = new short[4096];
+        final short[] to = new short[4096];
+        for (int i = 0; i < from.length; i++) {
+            Session a = sessions.get(random.nextInt(sessions.size()));
+            Session b = random.nextInt(8) == 0 ? sessions.get(random.nextInt(sessions.size())) : a;
+            from[i] = a.getClientId(random.nextInt(a.getSize()));
+            to[i] = b.getClientId(random.nextInt(b.getSize()));
+        }
+
+        bench("lookup+authorize", "ops/s", new Op() {
+            public long run(int n) {
+                long known = 0;
+                for (int i = 0; i < n; i++) {
+                    int j = i & (from.length - 1);
+                    Client clientFrom = controller.getClient(from[j]);
+                    Client clientTo = controller.getClient(to[j]);
+                    if (clientFrom != null && clientTo != null && clientTo.isKnownClient(clientFrom))
+                        known++;
+                }
+                return known;
+            }
+        }, 4096);
+    }
+
+    // a full receive, validate, send cycle through a forwarding worker over loopback
+    private static void forward() throws Exception {
+        int port = freePort();
+        TunnelController controller = controller(port, 8);
+        final Forwarder forwarder = new Forwarder(0, controller, port, false, new BufferPool(4, 4096), new SourceFilter(0), 64, 0);
+        Thread worker = new Thread(forwarder, "Forwarder-0");
+        worker.setDaemon(true);
+        worker.start();
+
+        Session session = controller.reserve(2);
+        final short a = session.getClientId(0);
+        final short b = session.getClientId(1);
+        final InetSocketAddress tunnel = new InetSocketAddress("127.0.0.1", port);
+
+        final DatagramChannel chanA = DatagramChannel.open();
+        final DatagramChannel chanB = DatagramChannel.open();
+        chanA.bind(new InetSocketAddress("127.0.0.1", 0));
+        chanB.bind(new InetSocketAddress("127.0.0.1", 0));
+
+        final byte[] payload = new byte[56];
+        final ByteBuffer out = ByteBuffer.allocateDirect(128);
+        final ByteBuffer in = ByteBuffer.allocateDirect(4096);
+
+        // bind both ends before measuring, the first one is dropped
+        out.clear();
+        out.putShort(b).putShort(a).put(new byte[60]).flip();
+        chanB.send(out, tunnel);
+        out.clear();
+        out.putShort(a).putShort(b).put(new byte[60]).flip();
+        chanA.send(out, tunnel);
+        chanB.receive(in);
+
+        final long workerThread = worker.getId();
+        final long allocatedBefore = allocatedBytes(workerThread);
+        final long packetsBefore = forwarder.getPackets();
+
+        // keep a window of datagrams in flight so we measure throughput, not round
+        // trips, and have both players send in turns like a game does, a single
+        // sender would hide the sender address the channel builds when it changes
+        bench("forward (loopback)", "pkts/s", new Op() {
+            public long run(int n) throws Exception {
+                for (int i = 0; i < n; i++) {
+                    boolean fromA = (i & 1) == 0;
+                    out.clear();
+                    out.putShort(fromA ? a : b).putShort(fromA ? b : a).putInt(i).put(payload).flip();
+                    (fromA ? chanA : chanB).send(out, tunnel);
+                }
+                long bytes = 0;
+                for (int i = 0; i < n; i++) {
+                    in.clear();
+                    ((i & 1) == 0 ? chanB : chanA).receive(in);
+                    bytes += in.position();
+                }
+                return bytes;
+            }
+        }, 32);
+
+        long packets = forwarder.getPackets() - packetsBefore;
+        long allocated = allocatedBytes(workerThread) - allocatedBefore;
+        if (packets > 0 && allocated >= 0) {
+            System.out.printf("    worker thread allocated %.2f bytes per datagram%n", (double)allocated / packets);
+        }
+
+        chanA.close();
+        chanB.close();
+    }
+
+    // concurrent reservations until a 64k client tunnel is full
+    private static void reserve() throws Exception {
+        for (int threads = 1; threads <= Runtime.getRuntime().availableProcessors() * 2; threads *= 2) {
+            double[] results = new double[ITERATIONS];
+
+            for (int iteration = -WARMUP; iteration < ITERATIONS; iteration++) {
+                final TunnelController controller = controller(0, IdAllocator.SIZE);
+                final CountDownLatch start = new CountDownLatch(1);
+                final AtomicInteger reserved = new AtomicInteger();
+                Thread[] workers = new Thread[threads];
+
+                for (int i = 0; i < threads; i++) {
+                    workers[i] = new Thread() {
+                        @Override
+                        public void run() {
+                            try {
+                                start.await();
+                            } catch (InterruptedException e) {
+                                return;
+                            }
+                            int mine = 0;
+                            while (controller.reserve(2) != null) {
+                                mine++;
+                            }
+                            reserved.addAndGet(mine);
+                        }
+                    };
+                    workers[i].start();
+                }
+
+                long begin = System.nanoTime();
+                start.countDown();
+                for (Thread t : workers) {
+                    t.join();
+                }
+                long took = System.nanoTime() - begin;
+
+                if (iteration >= 0) {
+                    results[iteration] = reserved.get() * 1e9 / took;
+                }
+            }
+
+            report("reserve, " + threads + " threads", "ops/s", results, -1);
+        }
+    }
+
+    // the reaper over 64k clients: the old full table scan against a timer wheel tick
+    private static void reaper() throws Exception {
+        final long base = 1000000000L;
+        final Session session = new Session(new short[] { 0, 1 });
+        final ClientTable table = new ClientTable();
+        final Client[] clients = new Client[ClientTable.CAPACITY];
+        for (int i = 0; i < clients.length; i++) {
+            clients[i] = new Client((short)i, session, 0);
+            // busy clients, nobody is going to time out, with deadlines spread
+            // over the wheel so every bucket holds 1/64th of them
+            clients[i].setLastPacket(Long.MAX_VALUE / 2 + (i % 64) * 1000);
+            table.put(clients[i]);
+        }
+
+        bench("reaper scan, 64k clients", "sweeps/s", new Op() {
+            public long run(int n) {
+                long count = 0;
+                for (int i = 0; i < n; i++) {
+                    for (int j = 0; j < ClientTable.CAPACITY; j++) {
+                        Client c = table.getAt(j);
+                        if (c != null && c.getLastPacket() + Client.TIMEOUT < base)
+                            count++;
+                    }
+                }
+                return count;
+            }
+        }, 1);
+
+        final TimerWheel<Client> wheel = new TimerWheel<Client>(1000, 64, base);
+        for (Client c : clients) {
+            wheel.schedule(c);
+        }
+
+        final List<Client> expired = new ArrayList<Client>();
+        final long[] now = { base };
+
+        // every tick revisits the 1/64th of the clients whose bucket came due
+        bench("reaper tick, 64k clients", "ticks/s", new Op() {
+            public long run(int n) {
+                long count = 0;
+                for (int i = 0; i < n; i++) {
+                    now[0] += 1000;
+                    expired.clear();
+                    wheel.advance(now[0], expired);
+                    count += expired.size();
+                }
+                return count;
+            }
+        }, 1);
+
+        final Client[] idle = new Client[ClientTable.CAPACITY];
+        for (int i = 0; i < idle.length; i++) {
+            idle[i] = new Client((short)i, session, 0);
+            idle[i].setLastPacket(base);
+        }
+
+        bench("schedule+expire 64k clients", "ops/s", new Op() {
+            public long run(int n) {
+                long count = 0;
+                for (int i = 0; i < n; i++) {
+                    TimerWheel<Client> w = new TimerWheel<Client>(1000, 64, base);
+                    for (Client c : idle) {
+                        w.schedule(c);
+                    }
+                    expired.clear();
+                    w.advance(base + Client.TIMEOUT + 1000, expired);
+                    count += expired.size();
+                }
+                return count;
+            }
+        }, 1);
+    }
+
+    private static void bench(String name, String unit, Op op, int batch) throws Exception {
+        for (int i = 0; i < WARMUP; i++) {
+            iteration(op, batch);
+        }
+
+        long thread = Thread.currentThread().getId();
+        long allocatedBefore = allocatedBytes(thread);
+        long ops = 0;
+
+        double[] results = new double[ITERATIONS];
+        for (int i = 0; i < ITERATIONS; i++) {
+            results[i] = iteration(op, batch);
+            ops += (long)(results[i] * ITERATION_NANOS / 1e9);
+        }
+
+        long allocated = allocatedBytes(thread) - allocatedBefore;
+        report(name, unit, results, allocatedBefore >= 0 && ops > 0 ? (double)allocated / ops : -1);
+    }
+
+    private static double iteration(Op op, int batch) throws Exception {
+        long ops = 0;
+        long start = System.nanoTime();
+        long end = start + ITERATION_NANOS;
+        long now;
+
+        do {
+            sink += op.run(batch);
+            ops += batch;
+            now = System.nanoTime();
+        } while (now < end);
+
+        return ops * 1e9 / (now - start);
+    }
+
+    private static void report(String name, String unit, double[] results, double bytesPerOp) {
+        double mean = 0;
+        for (double r : results) {
+            mean += r;
+        }
+        mean /= results.length;
+
+        double variance = 0;
+        for (double r : results) {
+            variance += (r - mean) * (r - mean);
+        }
+        double stdev = Math.sqrt(variance / results.length);
+
+        String line = String.format("%-32s %14.1f %-8s +- %5.1f%%", name, mean, unit, mean > 0 ? stdev * 100 / mean : 0);
+        if (bytesPerOp >= 0) {
+            line += String.format("  %8.2f B/op", bytesPerOp);
+        }
+        System.out.println(line);
+    }
+
+    static long allocatedBytes(long thread) {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (bean instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean)bean).getThreadAllocatedBytes(thread);
+        }
+        return -1;
+    }
+
+    static TunnelController controller(int port, int maxclients) {
+        return new TunnelController(port, new Config("bench", null, maxclients, null, null, 0, 0, Shaper.Limit.UNLIMITED, Shaper.Limit.UNLIMITED));
+    }
+
+    static int freePort() throws Exception {
+        DatagramSocket s = new DatagramSocket(0);
+        int port = s.getLocalPort();
+        s.close();
+        return port;
+    }
+}
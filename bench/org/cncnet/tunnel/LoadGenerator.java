@@ -0,0 +1,384 @@
+/*
+ * Copyright (c) 2026 CnCNet tunnel contributors
+ *
+ * Permission to use, copy, modify, and distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+package org.cncnet.tunnel;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Load generator and soak test for capacity planning without players. It
+ * allocates games through /request like a lobby would and then has every
+ * simulated client send datagrams to its peers over loopback at a fixed
+ * rate. Every datagram carries its send time, so the receiving side can
+ * measure delivery, loss and end to end latency through the tunnel.
+ *
+ * With -spawn the tunnel is started in this JVM with -headless -nomaster and
+ * no host rate limit. Against a separately started tunnel, run it with
+ * -nomaster -iplimit 0. With -churn games are torn down and replaced while
+ * running, which together with the periodic /metrics readings shows if the
+ * client table, the rate limiter or the log queue keep growing over a soak.
+ */
+public class LoadGenerator {
+
+    private static class Game {
+        public short[] ids;
+        public DatagramChannel[] channels;
+        public long[] sent;
+        public long started;
+    }
+
+    private static String host = "127.0.0.1";
+    private static int port = 50000;
+    private static boolean spawn = false;
+    private static int workers = 1;
+    private static int games = 10;
+    private static int clients = 4;
+    private static int rate = 30;
+    private static int size = 128;
+    private static int duration = 30;
+    private static int churn = 0;
+    private static int report = 5;
+
+    private static final List<Game> running = new ArrayList<Game>();
+    private static final ConcurrentLinkedQueue<DatagramChannel> registrations = new ConcurrentLinkedQueue<DatagramChannel>();
+    private static Selector selector;
+    private static InetSocketAddress tunnel;
+
+    // owned by the sender thread
+    private static long sent = 0;
+    private static long gamesStarted = 0;
+
+    // owned by the receiver thread
+    private static volatile long received = 0;
+    private static volatile long receivedBytes = 0;
+    private static final LatencyHistogram latency = new LatencyHistogram();
+
+    public static void main(String[] args) throws Exception {
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("-host") && i < args.length - 1) {
+                host = args[++i];
+            } else if (args[i].equals("-port") && i < args.length - 1) {
+                port = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("-spawn")) {
+                spawn = true;
+            } else if (args[i].equals("-workers") && i < args.length - 1) {
+                workers = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("-games") && i < args.length - 1) {
+                games = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("-clients") && i < args.length - 1) {
+                clients = Math.min(Math.max(Integer.parseInt(args[++i]), 2), 8);
+            } else if (args[i].equals("-rate") && i < args.length - 1) {
+                rate = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("-size") && i < args.length - 1) {
+                // the smallest datagram is half the size and has to fit the 12 byte header
+                size = Math.max(Integer.parseInt(args[++i]), 24);
+            } else if (args[i].equals("-duration") && i < args.length - 1) {
+                duration = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("-churn") && i < args.length - 1) {
+                churn = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("-report") && i < args.length - 1) {
+                report = Math.max(Integer.parseInt(args[++i]), 1);
+            } else {
+                System.out.println("Arguments: [-host <address>] [-port <number>] [-spawn] [-workers <number>] [-games <number>] [-clients <number>]"
+                    + " [-rate <packets per second per client>] [-size <bytes>] [-duration <seconds>] [-churn <game lifetime seconds>] [-report <seconds>]");
+                return;
+            }
+        }
+
+        if (spawn) {
+            startTunnel();
+        }
+
+        tunnel = new InetSocketAddress(host, port);
+        selector = Selector.open();
+
+        Thread receiver = new Thread(new Runnable() {
+            public void run() {
+                receive();
+            }
+        }, "Receiver");
+        receiver.setDaemon(true);
+        receiver.start();
+
+        for (int i = 0; i < games; i++) {
+            startGame();
+        }
+
+        System.out.println(games + " games of " + clients + " clients, " + rate + " packets/s per client at ~" + size + " bytes, for "
+            + duration + "s" + (churn > 0 ? ", games replaced every " + churn + "s" : ""));
+
+        send();
+
+        // give the last datagrams a moment to come through
+        Thread.sleep(1000);
+        summary();
+        System.exit(0);
+    }
+
+    private static void startTunnel() throws Exception {
+        Main.headless = true;
+        Main.nomaster = true;
+        Main.port = port;
+        Main.workers = workers;
+        Main.iplimit = 0;
+        // room for the replacement games while the old ones time out
+        Main.maxclients = games * clients * (churn > 0 ? 2 + 60 / churn : 1);
+
+        Thread t = new Thread(new Runnable() {
+            public void run() {
+                Main.start();
+            }
+        }, "Tunnel");
+        t.setDaemon(true);
+        t.start();
+
+        // wait for the HTTP server to come up
+        for (int i = 0; i < 50 && Main.httpExecutor == null; i++) {
+            Thread.sleep(100);
+        }
+        Thread.sleep(200);
+    }
+
+    private static void startGame() throws IOException {
+        String response = get("/request?clients=" + clients);
+        String[] parts = response.replace("[", "").replace("]", "").trim().split(",");
+
+        Game game = new Game();
+        game.ids = new short[parts.length];
+        game.channels = new DatagramChannel[parts.length];
+        game.sent = new long[parts.length];
+        // hold off until every client had a chance to bind, else the first datagrams are lost
+        game.started = System.nanoTime() + 100000000L;
+
+        for (int i = 0; i < parts.length; i++) {
+            game.ids[i] = Short.parseShort(parts[i].trim());
+            game.channels[i] = DatagramChannel.open();
+            game.channels[i].configureBlocking(false);
+            game.channels[i].bind(new InetSocketAddress("127.0.0.1", 0));
+            registrations.offer(game.channels[i]);
+        }
+        selector.wakeup();
+
+        // the tunnel learns where a client is from its first datagram
+        ByteBuffer hello = ByteBuffer.allocate(4);
+        for (int i = 0; i < parts.length; i++) {
+            hello.clear();
+            hello.putShort(game.ids[i]).putShort(game.ids[(i + 1) % parts.length]).flip();
+            game.channels[i].send(hello, tunnel);
+        }
+
+        running.add(game);
+        gamesStarted++;
+    }
+
+    private static void endGame(Game game) throws IOException {
+        // the tunnel lets the ids time out on its own
+        for (DatagramChannel chan : game.channels) {
+            chan.close();
+        }
+    }
+
+    private static void send() throws Exception {
+        ByteBuffer buf = ByteBuffer.allocateDirect(size * 2);
+        byte[] padding = new byte[size * 2];
+        Random random = new Random();
+
+        long start = System.nanoTime();
+        long end = start + duration * 1000000000L;
+        long nextReport = start + report * 1000000000L;
+        long lastSent = 0;
+        long lastReceived = 0;
+
+        while (System.nanoTime() < end) {
+            long now = System.nanoTime();
+
+            for (int g = 0; g < running.size(); g++) {
+                Game game = running.get(g);
+
+                if (churn > 0 && now - game.started > churn * 1000000000L) {
+                    endGame(game);
+                    startGame();
+                    running.remove(g--);
+                    continue;
+                }
+
+                if (now < game.started)
+                    continue;
+
+                long due = (now - game.started) / (1000000000L / rate);
+
+                for (int c = 0; c < game.ids.length; c++) {
+                    while (game.sent[c] < due) {
+                        // games talk to everyone else in the game in turn
+                        int peer = (int)((c + 1 + game.sent[c] % (game.ids.length - 1)) % game.ids.length);
+                        int length = size / 2 + random.nextInt(size);
+
+                        buf.clear();
+                        buf.putShort(game.ids[c]).putShort(game.ids[peer]).putLong(System.nanoTime());
+                        buf.put(padding, 0, length - 12);
+                        buf.flip();
+
+                        game.channels[c].send(buf, tunnel);
+                        game.sent[c]++;
+                        sent++;
+                    }
+                }
+            }
+
+            if (now >= nextReport) {
+                double seconds = report;
+                long r = received;
+                System.out.printf("%5ds  sent %8.0f/s  delivered %8.0f/s  loss %5.2f%%  p50 %s  p99 %s  max %s  %s%n",
+                    (now - start) / 1000000000L, (sent - lastSent) / seconds, (r - lastReceived) / seconds,
+                    sent > 0 ? (sent - r) * 100.0 / sent : 0.0, micros(quantile(0.5)), micros(quantile(0.99)),
+                    micros(latency.getMax()), tunnelState());
+                lastSent = sent;
+                lastReceived = r;
+                nextReport += report * 1000000000L;
+            }
+
+            Thread.sleep(1);
+        }
+
+        for (Game game : running) {
+            endGame(game);
+        }
+    }
+
+    private static void receive() {
+        ByteBuffer buf = ByteBuffer.allocateDirect(65536);
+
+        try {
+            while (true) {
+                DatagramChannel chan;
+                while ((chan = registrations.poll()) != null) {
+                    chan.register(selector, SelectionKey.OP_READ);
+                }
+
+                selector.select();
+
+                for (Iterator<SelectionKey> i = selector.selectedKeys().iterator(); i.hasNext();) {
+                    SelectionKey k = i.next();
+                    i.remove();
+
+                    if (!k.isValid())
+                        continue;
+
+                    DatagramChannel c = (DatagramChannel)k.channel();
+                    try {
+                        while (true) {
+                            buf.clear();
+                            if (c.receive(buf) == null)
+                                break;
+
+                            long now = System.nanoTime();
+                            buf.flip();
+                            if (buf.remaining() >= 12) {
+                                latency.record(now - buf.getLong(4));
+                                receivedBytes += buf.remaining();
+                                received++;
+                            }
+                        }
+                    } catch (IOException e) {
+                        k.cancel();
+                    }
+                }
+            }
+        } catch (IOException e) {
+            System.out.println("Receiver failed: " + e);
+        }
+    }
+
+    private static void summary() {
+        long r = received;
+        System.out.println();
+        System.out.println("games started  : " + gamesStarted);
+        System.out.println("sent           : " + sent);
+        System.out.println("delivered      : " + r + " (" + (receivedBytes / 1024) + " KB)");
+        System.out.printf("loss           : %.3f%%%n", sent > 0 ? (sent - r) * 100.0 / sent : 0.0);
+        System.out.printf("throughput     : %.0f packets/s%n", r / (double)duration);
+        System.out.println("latency p50    : " + micros(quantile(0.5)));
+        System.out.println("latency p99    : " + micros(quantile(0.99)));
+        System.out.println("latency p999   : " + micros(quantile(0.999)));
+        System.out.println("latency max    : " + micros(latency.getMax()));
+        System.out.println("tunnel         : " + tunnelState());
+    }
+
+    private static long quantile(double q) {
+        long[] merged = new long[LatencyHistogram.BUCKETS];
+        latency.addTo(merged);
+        return Math.min(LatencyHistogram.quantile(merged, q), latency.getMax());
+    }
+
+    private static String micros(long nanos) {
+        return (nanos / 1000) + "us";
+    }
+
+    // the numbers that show leaks over a soak, straight from /metrics
+    private static String tunnelState() {
+        try {
+            String metrics = get("/metrics");
+            return "clients " + metric(metrics, "clients") + ", ratelimit " + metric(metrics, "ratelimit_addresses")
+                + ", log queue " + metric(metrics, "log_queue_depth") + ", heap " + (Long.parseLong(metric(metrics, "heap_used_bytes")) / 1048576) + "MB";
+        } catch (Exception e) {
+            return "metrics unavailable: " + e.getMessage();
+        }
+    }
+
+    private static String metric(String metrics, String name) {
+        String prefix = "cncnet_tunnel_" + name + " ";
+        for (String line : metrics.split("\n")) {
+            if (line.startsWith(prefix))
+                return line.substring(prefix.length()).trim();
+        }
+        return "0";
+    }
+
+    private static String get(String path) throws IOException {
+        URL url = new URL("http://" + host + ":" + port + path);
+        HttpURLConnection con = (HttpURLConnection)url.openConnection();
+        con.setConnectTimeout(5000);
+        con.setReadTimeout(5000);
+
+        if (con.getResponseCode() != 200)
+            throw new IOException(path + " returned " + con.getResponseCode());
+
+        StringBuilder ret = new StringBuilder();
+        BufferedReader in = new BufferedReader(new InputStreamReader(con.getInputStream(), "UTF-8"));
+        try {
+            String line;
+            while ((line = in.readLine()) != null) {
+                ret.append(line).append('\n');
+            }
+        } finally {
+            in.close();
+        }
+        return ret.toString();
+    }
+}
@@ -0,0 +1,30 @@
+#!/bin/sh
+#
+# Builds the tunnel together with the benchmarks and runs them, pass a
+# benchmark name (lookup, forward, reserve, reaper) to run only that one.
+#
+# Pass "load" followed by its options to run the load generator instead,
+# for example: bench/run.sh load -spawn -games 500 -duration 600 -churn 120
+#
+# Pass "check" to check that forwarding allocates no more per datagram
+# than it is allowed to, it exits with an error if it does.
+#
+set -e
+
+cd "$(dirname "$0")/.."
+out="${TMPDIR:-/tmp}/cncnet-tunnel-bench"
+
+rm -rf "$out"
+mkdir -p "$out"
+javac -d "$out" $(find src bench -name '*.java')
+
+if [ "$1" = "load" ]; then
+    shift
+    exec java -cp "$out" org.cncnet.tunnel.LoadGenerator "$@"
+fi
+
+if [ "$1" = "check" ]; then
+    exec java -cp "$out" org.cncnet.tunnel.AllocationCheck
+fi
+
+exec java -cp "$out" org.cncnet.tunnel.Benchmarks "$@"
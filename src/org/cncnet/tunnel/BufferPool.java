@@ -0,0 +1,80 @@
+/*
+ * Copyright (c) 2026 CnCNet tunnel contributors
+ *
+ * Permission to use, copy, modify, and distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+package org.cncnet.tunnel;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Fixed set of direct buffers sliced out of one off-heap allocation. The
+ * channel reads and writes straight from these so the JDK doesn't have to
+ * copy every datagram through a temporary direct buffer.
+ *
+ * Each forwarding worker has its own pool, so it is not thread safe.
+ */
+public class BufferPool {
+
+    private ByteBuffer[] free;
+    private int available;
+    private int bufferSize;
+
+    public BufferPool(int count, int bufferSize) {
+        // the slab is a single buffer, it can't go over 2 GB
+        if ((long)count * bufferSize > Integer.MAX_VALUE)
+            throw new IllegalArgumentException(count + " buffers of " + bufferSize + " bytes don't fit in one 2 GB allocation.");
+
+        this.bufferSize = bufferSize;
+        this.free = new ByteBuffer[count];
+
+        ByteBuffer slab = ByteBuffer.allocateDirect(count * bufferSize);
+        for (int i = 0; i < count; i++) {
+            slab.limit((i + 1) * bufferSize);
+            slab.position(i * bufferSize);
+            free[i] = slab.slice();
+        }
+
+        available = count;
+    }
+
+    public ByteBuffer acquire() {
+        if (available == 0)
+            return null;
+
+        ByteBuffer buf = free[--available];
+        free[available] = null;
+        buf.clear();
+        return buf;
+    }
+
+    public void release(ByteBuffer buf) {
+        free[available++] = buf;
+    }
+
+    public int getAvailable() {
+        return available;
+    }
+
+    public int getCount() {
+        return free.length;
+    }
+
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+    public long getMemory() {
+        return (long)free.length * bufferSize;
+    }
+}
@@ -15,36 +15,79 @@
  */
 package org.cncnet.tunnel;
 
+import java.net.InetAddress;
 import java.net.InetSocketAddress;
-import java.util.List;
 
 /**
  *
  * @author Toni Spets <toni.spets@iki.fi>
  */
-public class Client {
+public class Client implements TimerWheel.Timeout {
+
+    // clients that haven't sent anything for this long are released
+    public static final long TIMEOUT = 60000;
 
     private short id;
-    private InetSocketAddress address;
-    private long lastPacket;
-    private List<Short> friends;
+    private Session session;
+    private int slot;
+    private volatile InetSocketAddress address;
+    // cached from the bound address for the per-packet sender check
+    private int addressHash;
+    private int port;
+    private volatile long lastPacket;
+    // when activity was last written to the snapshot, racy on purpose
+    private long lastSaved;
+    private final Shaper shaper = new Shaper();
 
-    public Client(short id, List<Short> friends) { 
+    public Client(short id, Session session, int slot) {
         this.id = id;
+        this.session = session;
+        this.slot = slot;
         this.lastPacket = System.currentTimeMillis();
-        this.friends = friends;
     }
 
     public short getId() {
         return this.id;
     }
 
-    public boolean isKnownClient(short otherId) {
-        return friends.contains(otherId);
+    public Session getSession() {
+        return session;
+    }
+
+    public int getSlot() {
+        return slot;
+    }
+
+    public Shaper getShaper() {
+        return shaper;
     }
 
-    public void setAddress(InetSocketAddress newAddress) {
+    public boolean isKnownClient(Client other) {
+        return other.session == session && session.isMember(other.slot);
+    }
+
+    public synchronized boolean bindAddress(InetSocketAddress newAddress) {
+        if (address != null)
+            return false;
+
+        addressHash = newAddress.getAddress().hashCode();
+        port = newAddress.getPort();
         address = newAddress;
+        return true;
+    }
+
+    /**
+     * Checks if a datagram came from the endpoint this client is bound to.
+     * Compares the port and the address hash (the raw address for IPv4)
+     * before doing a full compare, and never allocates.
+     */
+    public boolean isBoundTo(InetSocketAddress from) {
+        InetSocketAddress bound = address;
+        if (bound == null || from.getPort() != port)
+            return false;
+
+        InetAddress addr = from.getAddress();
+        return addr.hashCode() == addressHash && addr.equals(bound.getAddress());
     }
 
     public InetSocketAddress getAddress() {
@@ -58,5 +101,18 @@ public class Client {
     public long getLastPacket() {
         return lastPacket;
     }
+
+    public long getLastSaved() {
+        return lastSaved;
+    }
+
+    public void setLastSaved(long lastSaved) {
+        this.lastSaved = lastSaved;
+    }
+
+    @Override
+    public long getDeadline() {
+        return lastPacket + TIMEOUT;
+    }
     
 }
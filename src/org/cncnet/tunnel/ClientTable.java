@@ -0,0 +1,70 @@
+/*
+ * Copyright (c) 2026 CnCNet tunnel contributors
+ *
+ * Permission to use, copy, modify, and distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+package org.cncnet.tunnel;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Client table indexed directly by the 16-bit client id. Lookups are a
+ * single volatile array read, no boxing and no hashing, which is what the
+ * forwarding loop needs for every packet.
+ */
+public class ClientTable {
+
+    public static final int CAPACITY = 1 << 16;
+
+    private final AtomicReferenceArray<Client> slots;
+    private final AtomicInteger size;
+
+    public ClientTable() {
+        slots = new AtomicReferenceArray<Client>(CAPACITY);
+        size = new AtomicInteger();
+    }
+
+    public Client get(short id) {
+        return slots.get(id & 0xFFFF);
+    }
+
+    // used for walking the whole table, index is the unsigned client id
+    public Client getAt(int index) {
+        return slots.get(index);
+    }
+
+    public boolean put(Client client) {
+        if (!slots.compareAndSet(client.getId() & 0xFFFF, null, client))
+            return false;
+
+        size.incrementAndGet();
+        return true;
+    }
+
+    public boolean remove(Client client) {
+        if (!slots.compareAndSet(client.getId() & 0xFFFF, client, null))
+            return false;
+
+        size.decrementAndGet();
+        return true;
+    }
+
+    public int size() {
+        return size.get();
+    }
+
+    public boolean isEmpty() {
+        return size.get() == 0;
+    }
+}
@@ -0,0 +1,175 @@
+/*
+ * Copyright (c) 2026 CnCNet tunnel contributors
+ *
+ * Permission to use, copy, modify, and distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+package org.cncnet.tunnel;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Properties;
+
+/**
+ * The settings that can be changed while the tunnel is running. A Config
+ * never changes, a reload builds a new one and the controller swaps it in
+ * with a single volatile write, so readers never take a lock and always see
+ * one consistent set of values.
+ *
+ * A config file is a properties file with any of the keys name, password,
+ * maxclients, master, masterpw, nomaster, iplimit, iprate, clientrate,
+ * clientpps, sessionrate, sessionpps and burst. They mean the same as the
+ * command line options, and anything left out keeps its command line value.
+ */
+public class Config {
+
+    private final String name;
+    private final String password;
+    private final int maxclients;
+    private final String master;
+    private final String masterpw;
+    private final int iplimit;
+    private final int iprate;
+    private final Shaper.Limit clientLimit;
+    private final Shaper.Limit sessionLimit;
+
+    /**
+     * @param master null when not registering to a master
+     * @param iprate 0 gives an ip its whole burst back every minute
+     */
+    public Config(String name, String password, int maxclients, String master, String masterpw, int iplimit, int iprate,
+            Shaper.Limit clientLimit, Shaper.Limit sessionLimit) {
+        this.name = name;
+        this.password = password;
+        this.maxclients = maxclients;
+        this.master = master;
+        this.masterpw = masterpw;
+        this.iplimit = iplimit;
+        this.iprate = iprate == 0 ? iplimit : iprate;
+        this.clientLimit = clientLimit;
+        this.sessionLimit = sessionLimit;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getPassword() {
+        return password;
+    }
+
+    public int getMaxClients() {
+        return maxclients;
+    }
+
+    public String getMaster() {
+        return master;
+    }
+
+    public String getMasterPassword() {
+        return masterpw;
+    }
+
+    public int getIpLimit() {
+        return iplimit;
+    }
+
+    public int getIpRate() {
+        return iprate;
+    }
+
+    public Shaper.Limit getClientLimit() {
+        return clientLimit;
+    }
+
+    public Shaper.Limit getSessionLimit() {
+        return sessionLimit;
+    }
+
+    /**
+     * Reads a config file on top of the given config.
+     */
+    public static Config load(String path, Config base) throws IOException {
+        Properties p = new Properties();
+        InputStream in = new FileInputStream(path);
+        try {
+            p.load(in);
+        } finally {
+            in.close();
+        }
+
+        String master = base.master;
+        if (p.getProperty("master") != null)
+            master = p.getProperty("master").trim();
+        if (Boolean.parseBoolean(p.getProperty("nomaster", "false").trim()))
+            master = null;
+
+        Shaper.Limit client = base.clientLimit;
+        Shaper.Limit session = base.sessionLimit;
+        long burst = number(p, "burst", client.getBurst());
+
+        try {
+            return new Config(
+                p.getProperty("name", base.name),
+                p.containsKey("password") ? emptyToNull(p.getProperty("password")) : base.password,
+                Math.max((int)number(p, "maxclients", base.maxclients), 2),
+                master,
+                p.containsKey("masterpw") ? emptyToNull(p.getProperty("masterpw")) : base.masterpw,
+                (int)number(p, "iplimit", base.iplimit),
+                // a new iplimit without an iprate follows the limit like on the command line
+                (int)number(p, "iprate", p.containsKey("iplimit") ? 0 : base.iprate),
+                new Shaper.Limit(number(p, "clientrate", client.getBytesPerSecond() / 1024) * 1024,
+                    number(p, "clientpps", client.getPacketsPerSecond()), burst),
+                new Shaper.Limit(number(p, "sessionrate", session.getBytesPerSecond() / 1024) * 1024,
+                    number(p, "sessionpps", session.getPacketsPerSecond()), burst)
+            );
+        } catch (NumberFormatException e) {
+            throw new IOException("Invalid number in " + path + ": " + e.getMessage());
+        }
+    }
+
+    private static long number(Properties p, String key, long def) {
+        String value = p.getProperty(key);
+        return value == null ? def : Math.abs(Long.parseLong(value.trim()));
+    }
+
+    private static String emptyToNull(String value) {
+        return value.trim().length() == 0 ? null : value.trim();
+    }
+
+    /**
+     * What changed from the old config, for the log.
+     */
+    public String describeChanges(Config old) {
+        StringBuilder ret = new StringBuilder();
+        change(ret, "name", old.name, name);
+        change(ret, "password", old.password != null ? "set" : "none", password != null ? "set" : "none");
+        change(ret, "maxclients", old.maxclients, maxclients);
+        change(ret, "master", old.master != null ? old.master : "disabled", master != null ? master : "disabled");
+        change(ret, "masterpw", old.masterpw != null ? "set" : "none", masterpw != null ? "set" : "none");
+        change(ret, "iplimit", old.iplimit, iplimit);
+        change(ret, "iprate", old.iprate, iprate);
+        change(ret, "client limit", old.clientLimit, clientLimit);
+        change(ret, "session limit", old.sessionLimit, sessionLimit);
+        return ret.length() == 0 ? "nothing changed" : ret.toString();
+    }
+
+    private static void change(StringBuilder ret, String what, Object from, Object to) {
+        if (String.valueOf(from).equals(String.valueOf(to)))
+            return;
+
+        if (ret.length() > 0)
+            ret.append(", ");
+        ret.append(what).append(' ').append(from).append(" -> ").append(to);
+    }
+}
@@ -0,0 +1,448 @@
+/*
+ * Copyright (c) 2026 CnCNet tunnel contributors
+ *
+ * Permission to use, copy, modify, and distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+package org.cncnet.tunnel;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.BufferOverflowException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.Consumer;
+
+/**
+ * One UDP forwarding worker. Each worker owns its own channel, selector and
+ * pool of direct packet buffers. When more than one worker is running the channels are all
+ * bound to the same port with SO_REUSEPORT and the kernel spreads incoming
+ * datagrams between them, while the client table is shared through the
+ * controller.
+ */
+public class Forwarder implements Runnable {
+
+    private int index;
+    private TunnelController controller;
+    private Selector selector;
+    private DatagramChannel channel;
+    private SelectionKey key;
+    private ByteBuffer receiveBuffer;
+    private BufferPool pool;
+    private SourceFilter filter;
+    private SessionSnapshot snapshot;
+    private PacketCapture capture;
+    private int batch;
+    // every this many datagrams one is timed, 0 turns timing off
+    private int sampleEvery;
+    private int sampleCountdown;
+    private final LatencyHistogram latency = new LatencyHistogram();
+    // datagrams the socket had no room for, oldest first, each in a pool buffer
+    private final ByteBuffer[] queued;
+    private final InetSocketAddress[] queuedTo;
+    private final Session[] queuedSession;
+    private int queueHead = 0;
+    private int queueSize = 0;
+    // per-packet problems are logged at most once a second
+    private long lastDropLog = 0;
+    private long suppressedDrops = 0;
+
+    // written only by the worker thread, read by anyone for statistics
+    private final AtomicLong wakeups = new AtomicLong();
+    private final AtomicLong packets = new AtomicLong();
+    private final AtomicLong budgetExhausted = new AtomicLong();
+    private final AtomicInteger queueDepth = new AtomicInteger();
+    // bucket n counts batches of 2^(n-1) to 2^n-1 datagrams, bucket 0 is empty wakeups
+    private final AtomicLongArray batchSizes = new AtomicLongArray(33);
+
+    public Forwarder(int index, TunnelController controller, int port, boolean reusePort, BufferPool pool, SourceFilter filter, int batch, int sampleEvery) throws IOException {
+        this.index = index;
+        this.controller = controller;
+        this.pool = pool;
+        this.filter = filter;
+        this.snapshot = controller.getSnapshot();
+        this.capture = controller.getCapture();
+        this.batch = batch;
+        this.sampleEvery = sampleEvery;
+        this.sampleCountdown = sampleEvery;
+
+        // every buffer but the one we receive into can hold a queued datagram
+        int queueCapacity = Math.max(pool.getCount() - 1, 0);
+        this.queued = new ByteBuffer[queueCapacity];
+        this.queuedTo = new InetSocketAddress[queueCapacity];
+        this.queuedSession = new Session[queueCapacity];
+
+        selector = Selector.open();
+        channel = DatagramChannel.open();
+        channel.configureBlocking(false);
+        if (reusePort) {
+            channel.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+        }
+        channel.socket().bind(new InetSocketAddress("0.0.0.0", port));
+        key = channel.register(selector, SelectionKey.OP_READ);
+    }
+
+    public static boolean isReusePortSupported() {
+        try {
+            DatagramChannel test = DatagramChannel.open();
+            try {
+                return test.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT);
+            } finally {
+                test.close();
+            }
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    public int getIndex() {
+        return index;
+    }
+
+    public int getBatch() {
+        return batch;
+    }
+
+    public LatencyHistogram getLatency() {
+        return latency;
+    }
+
+    public BufferPool getPool() {
+        return pool;
+    }
+
+    public long getWakeups() {
+        return wakeups.get();
+    }
+
+    public long getPackets() {
+        return packets.get();
+    }
+
+    public long getBudgetExhausted() {
+        return budgetExhausted.get();
+    }
+
+    public int getQueueDepth() {
+        return queueDepth.get();
+    }
+
+    public long[] getBatchSizes() {
+        long[] ret = new long[batchSizes.length()];
+        for (int i = 0; i < ret.length; i++) {
+            ret[i] = batchSizes.get(i);
+        }
+        return ret;
+    }
+
+    @Override
+    public void run() {
+        try {
+            forward();
+        } catch (Exception e) {
+            Main.log("Forwarder " + index + ": " + e.toString());
+            e.printStackTrace();
+            System.exit(1);
+        }
+    }
+
+    private void forward() throws IOException {
+
+        // received datagrams are forwarded straight out of the same buffer
+        receiveBuffer = pool.acquire();
+
+        while (true) {
+            selector.select(ready);
+        }
+    }
+
+    // our channel is the only one registered, it is handed to us directly
+    // instead of through the selected key set, adding to which allocates
+    private final Consumer<SelectionKey> ready = new Consumer<SelectionKey>() {
+        public void accept(SelectionKey k) {
+            long now = System.currentTimeMillis();
+
+            if (k.isValid() && k.isWritable()) {
+                flush(channel);
+            }
+
+            if (k.isValid() && k.isReadable()) {
+                drain(channel, receiveBuffer, now);
+            }
+
+            if (!channel.isOpen()) {
+                k.cancel();
+            }
+        }
+    };
+
+    // read datagrams until the socket is empty or the budget is spent
+    private void drain(DatagramChannel chan, ByteBuffer buf, long now) {
+        int received = 0;
+        long nanos = System.nanoTime();
+        Config config = controller.getConfig();
+        Shaper.Limit clientLimit = config.getClientLimit();
+        Shaper.Limit sessionLimit = config.getSessionLimit();
+
+        while (received < batch) {
+            try {
+                buf.clear();
+                InetSocketAddress from = (InetSocketAddress)chan.receive(buf);
+                if (from == null)
+                    break;
+
+                received++;
+
+                // known junk sources are dropped before we look at a single byte
+                if (filter.isBlocked(from, now)) {
+                    Metrics.Drop.BLACKHOLED.count.increment();
+                    continue;
+                }
+
+                long started = 0;
+                if (sampleEvery > 0 && --sampleCountdown == 0) {
+                    sampleCountdown = sampleEvery;
+                    started = System.nanoTime();
+                }
+
+                buf.flip();
+                if (buf.remaining() < 4) {
+                    // too short for a header, nothing a client would send
+                    Metrics.Drop.UNDERFLOW.count.increment();
+                    junk(from, now);
+                    continue;
+                }
+
+                if (handlePacket(chan, buf, from, now, nanos, clientLimit, sessionLimit) && started != 0) {
+                    latency.record(System.nanoTime() - started);
+                }
+            } catch (IOException e) {
+                if (canLogDrop(now))
+                    Main.log("IOException when handling event: " + e.getMessage() + suppressedDrops());
+                break;
+            } catch (BufferUnderflowException e) {
+                Metrics.Drop.UNDERFLOW.count.increment();
+                if (canLogDrop(now))
+                    Main.log("BufferUnderflowException when handling event: " + e.getMessage() + suppressedDrops());
+            } catch (BufferOverflowException e) {
+                if (canLogDrop(now))
+                    Main.log("BufferOverflowException when handling event: " + e.getMessage() + suppressedDrops());
+            }
+        }
+
+        wakeups.lazySet(wakeups.get() + 1);
+        packets.lazySet(packets.get() + received);
+        if (received == batch) {
+            budgetExhausted.lazySet(budgetExhausted.get() + 1);
+        }
+
+        int bucket = 32 - Integer.numberOfLeadingZeros(received);
+        batchSizes.lazySet(bucket, batchSizes.get(bucket) + 1);
+    }
+
+    // returns true if the datagram was sent on
+    private boolean handlePacket(DatagramChannel chan, ByteBuffer buf, InetSocketAddress from, long now, long nanos,
+            Shaper.Limit clientLimit, Shaper.Limit sessionLimit) throws IOException {
+        short hdrFrom = buf.getShort();
+        short hdrTo = buf.getShort();
+
+        buf.rewind();
+
+        Client clientFrom = controller.getClient(hdrFrom);
+        Client clientTo = controller.getClient(hdrTo);
+        Metrics.Drop drop = null;
+        boolean capturing = capture != null && capture.wants(clientFrom);
+
+        if (clientFrom == null) {
+            drop = Metrics.Drop.UNKNOWN_SENDER;
+        } else {
+            // the first packet binds the client, other workers may race us here
+            if (clientFrom.getAddress() == null && clientFrom.bindAddress(from) && snapshot != null) {
+                snapshot.bound(clientFrom);
+            }
+
+            // don't allow faking client id
+            if (!clientFrom.isBoundTo(from)) {
+                drop = Metrics.Drop.SPOOFED;
+            } else if (clientTo == null) {
+                drop = Metrics.Drop.UNKNOWN_DESTINATION;
+            } else if (hdrFrom == hdrTo) {
+                drop = Metrics.Drop.SELF_SEND;
+            } else if (!clientTo.isKnownClient(clientFrom)) {
+                drop = Metrics.Drop.NOT_FRIEND;
+            }
+        }
+
+        if (drop != null) {
+            drop.count.increment();
+            if (capturing)
+                capture.record(buf, from, PacketCapture.DROPPED, drop);
+            if (drop == Metrics.Drop.UNKNOWN_SENDER || drop == Metrics.Drop.SPOOFED) {
+                junk(from, now);
+            }
+            if (canLogDrop(now))
+                Main.log("Ignoring packet from " + hdrFrom + " to " + hdrTo + " (" + from + "), was " + buf.limit() + " bytes" + suppressedDrops());
+            return false;
+        }
+
+        clientFrom.setLastPacket(now);
+        clientFrom.getSession().setLastPacket(now);
+        filter.recordValid(from);
+        if (snapshot != null) {
+            snapshot.touch(clientFrom, now);
+        }
+
+        // one flooding client or game must not eat the uplink of everyone else
+        int length = buf.remaining();
+        if (!clientLimit.isUnlimited() && !clientFrom.getShaper().admit(clientLimit, length, nanos)) {
+            Metrics.Drop.CLIENT_LIMIT.count.increment();
+            if (capturing)
+                capture.record(buf, from, PacketCapture.DROPPED, Metrics.Drop.CLIENT_LIMIT);
+            return false;
+        }
+
+        if (!sessionLimit.isUnlimited() && !clientFrom.getSession().getShaper().admit(sessionLimit, length, nanos)) {
+            Metrics.Drop.SESSION_LIMIT.count.increment();
+            if (capturing)
+                capture.record(buf, from, PacketCapture.DROPPED, Metrics.Drop.SESSION_LIMIT);
+            return false;
+        }
+
+        InetSocketAddress to = clientTo.getAddress();
+        if (to == null) {
+            // the other end hasn't said anything yet so we don't know where it is
+            Metrics.Drop.UNBOUND_DESTINATION.count.increment();
+            if (capturing)
+                capture.record(buf, from, PacketCapture.DROPPED, Metrics.Drop.UNBOUND_DESTINATION);
+            return false;
+        }
+
+        // anything already waiting goes out first
+        Session session = clientFrom.getSession();
+        if (queueSize > 0 || chan.send(buf, to) == 0) {
+            enqueue(buf, to, session);
+            if (capturing)
+                capture.record(buf, from, PacketCapture.QUEUED, null);
+            return false;
+        }
+
+        if (capturing)
+            capture.record(buf, from, PacketCapture.FORWARDED, null);
+
+        sent(session, length);
+        return true;
+    }
+
+    private void sent(Session session, int length) {
+        session.addTraffic(length);
+        Metrics.packetsForwarded.increment();
+        Metrics.bytesForwarded.add(length);
+    }
+
+    // the socket send buffer is full, park a copy until the channel is writable
+    private void enqueue(ByteBuffer buf, InetSocketAddress to, Session session) {
+        if (queued.length == 0) {
+            Metrics.sendQueueDropped.increment();
+            return;
+        }
+
+        ByteBuffer copy;
+        if (queueSize == queued.length) {
+            // full, the oldest datagram is the least useful one to a game
+            copy = queued[queueHead];
+            queueHead = (queueHead + 1) % queued.length;
+            queueSize--;
+            Metrics.sendQueueDropped.increment();
+        } else {
+            copy = pool.acquire();
+        }
+
+        copy.clear();
+        copy.put(buf);
+        copy.flip();
+
+        int tail = (queueHead + queueSize) % queued.length;
+        queued[tail] = copy;
+        queuedTo[tail] = to;
+        queuedSession[tail] = session;
+        queueSize++;
+        queueDepth.lazySet(queueSize);
+        Metrics.sendsQueued.increment();
+
+        if (queueSize == 1) {
+            key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+        }
+    }
+
+    // sends queued datagrams until the socket is full again or the queue is empty
+    private void flush(DatagramChannel chan) {
+        while (queueSize > 0) {
+            ByteBuffer b = queued[queueHead];
+            int length = b.remaining();
+
+            try {
+                if (chan.send(b, queuedTo[queueHead]) == 0)
+                    break;
+                sent(queuedSession[queueHead], length);
+                Metrics.sendQueueDrained.increment();
+            } catch (IOException e) {
+                // this one can't be sent at all, don't let it block the rest
+                Metrics.sendQueueDropped.increment();
+            }
+
+            pool.release(b);
+            queued[queueHead] = null;
+            queuedTo[queueHead] = null;
+            queuedSession[queueHead] = null;
+            queueHead = (queueHead + 1) % queued.length;
+            queueSize--;
+        }
+
+        queueDepth.lazySet(queueSize);
+
+        if (queueSize == 0) {
+            key.interestOps(SelectionKey.OP_READ);
+        }
+    }
+
+    private void junk(InetSocketAddress from, long now) {
+        if (filter.recordJunk(from, now) && canLogDrop(now)) {
+            Main.log("Blackholing " + from + " for sending junk." + suppressedDrops());
+        }
+    }
+
+    private boolean canLogDrop(long now) {
+        if (now - lastDropLog < 1000) {
+            suppressedDrops++;
+            return false;
+        }
+
+        lastDropLog = now;
+        return true;
+    }
+
+    private String suppressedDrops() {
+        if (suppressedDrops == 0)
+            return "";
+
+        String ret = " (" + suppressedDrops + " similar messages suppressed)";
+        suppressedDrops = 0;
+        return ret;
+    }
+}
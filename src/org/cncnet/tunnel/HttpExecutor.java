@@ -0,0 +1,97 @@
+/*
+ * Copyright (c) 2026 CnCNet tunnel contributors
+ *
+ * Permission to use, copy, modify, and distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+package org.cncnet.tunnel;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bounded thread pool for the HTTP control plane. Keeps track of how long
+ * exchanges wait in the queue and how long they take to handle. When the
+ * queue is full the exchange is handled on the HTTP dispatcher thread,
+ * which pushes back on new connections instead of dropping them.
+ */
+public class HttpExecutor extends ThreadPoolExecutor {
+
+    private final LongAdder requests = new LongAdder();
+    private final LongAdder waitNanos = new LongAdder();
+    private final LongAdder serviceNanos = new LongAdder();
+    private final AtomicLong maxNanos = new AtomicLong();
+
+    public HttpExecutor(int threads, int queue) {
+        super(threads, threads, 60, TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(queue), new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "HTTP-" + count.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        }, new ThreadPoolExecutor.CallerRunsPolicy());
+    }
+
+    @Override
+    public void execute(final Runnable task) {
+        final long queued = System.nanoTime();
+
+        super.execute(new Runnable() {
+            @Override
+            public void run() {
+                long started = System.nanoTime();
+                try {
+                    task.run();
+                } finally {
+                    long done = System.nanoTime();
+                    requests.increment();
+                    waitNanos.add(started - queued);
+                    serviceNanos.add(done - started);
+
+                    long cur;
+                    do {
+                        cur = maxNanos.get();
+                    } while (done - queued > cur && !maxNanos.compareAndSet(cur, done - queued));
+                }
+            }
+        });
+    }
+
+    public long getRequests() {
+        return requests.sum();
+    }
+
+    public int getQueueDepth() {
+        return getQueue().size();
+    }
+
+    public long getWaitNanos() {
+        return waitNanos.sum();
+    }
+
+    public long getServiceNanos() {
+        return serviceNanos.sum();
+    }
+
+    // slowest exchange so far, queue wait included
+    public long getMaxNanos() {
+        return maxNanos.get();
+    }
+}
@@ -0,0 +1,105 @@
+/*
+ * Copyright (c) 2026 CnCNet tunnel contributors
+ *
+ * Permission to use, copy, modify, and distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+package org.cncnet.tunnel;
+
+import java.security.SecureRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Hands out 16-bit client ids in an unpredictable order. A counter is run
+ * through a small Feistel network with random round keys, which is a
+ * permutation of the whole id space, and a bitmap keeps track of the ids
+ * in use. Released ids come around again only after the counter has gone
+ * through every other id, like the shuffled queue this replaces.
+ *
+ * Allocation and release are lock-free.
+ */
+public class IdAllocator {
+
+    public static final int SIZE = 1 << 16;
+
+    private static final int ROUNDS = 6;
+
+    private final int[] keys;
+    private final AtomicInteger cursor;
+    private final AtomicLongArray used;
+
+    public IdAllocator() {
+        SecureRandom random = new SecureRandom();
+
+        keys = new int[ROUNDS];
+        for (int i = 0; i < ROUNDS; i++) {
+            keys[i] = random.nextInt();
+        }
+
+        cursor = new AtomicInteger(random.nextInt());
+        used = new AtomicLongArray(SIZE / 64);
+    }
+
+    /**
+     * Returns a free id as an unsigned value (cast to short for use) or -1
+     * if every id is taken.
+     */
+    public int allocate() {
+        for (int tries = 0; tries < SIZE; tries++) {
+            int id = permute(cursor.getAndIncrement() & 0xFFFF);
+            if (reserve(id))
+                return id;
+        }
+
+        return -1;
+    }
+
+    // marks a specific id as used, false if it already was
+    public boolean reserve(int id) {
+        int index = id >>> 6;
+        long bit = 1L << (id & 63);
+        long cur;
+
+        do {
+            cur = used.get(index);
+            if ((cur & bit) != 0)
+                return false;
+        } while (!used.compareAndSet(index, cur, cur | bit));
+
+        return true;
+    }
+
+    public void release(int id) {
+        int index = id >>> 6;
+        long bit = 1L << (id & 63);
+        long cur;
+
+        do {
+            cur = used.get(index);
+        } while (!used.compareAndSet(index, cur, cur & ~bit));
+    }
+
+    private int permute(int x) {
+        int left = x >>> 8;
+        int right = x & 0xFF;
+
+        for (int i = 0; i < ROUNDS; i++) {
+            int h = (right ^ keys[i]) * 0x9E3779B1;
+            int next = left ^ ((h ^ (h >>> 15)) >>> 8 & 0xFF);
+            left = right;
+            right = next;
+        }
+
+        return (left << 8) | right;
+    }
+}
@@ -0,0 +1,107 @@
+/*
+ * Copyright (c) 2026 CnCNet tunnel contributors
+ *
+ * Permission to use, copy, modify, and distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+package org.cncnet.tunnel;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Fixed size log-linear histogram of nanosecond durations, the same bucket
+ * layout HdrHistogram uses: every power of two is split into 16 linear
+ * buckets, so any recorded value is off by at most 1/16. Values above
+ * about 18 minutes land in the last bucket.
+ *
+ * Only one thread may record into a histogram, any thread can read it.
+ */
+public class LatencyHistogram {
+
+    private static final int SUB_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BITS;
+    private static final int MAX_MAGNITUDE = 40;
+    public static final int BUCKETS = (MAX_MAGNITUDE - SUB_BITS + 2) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong max = new AtomicLong();
+    // exact total of the recorded values, for the summary's _sum
+    private final AtomicLong sum = new AtomicLong();
+
+    public void record(long nanos) {
+        int index = indexOf(nanos);
+        counts.lazySet(index, counts.get(index) + 1);
+        sum.lazySet(sum.get() + nanos);
+        if (nanos > max.get()) {
+            max.lazySet(nanos);
+        }
+    }
+
+    public long getMax() {
+        return max.get();
+    }
+
+    public long getSum() {
+        return sum.get();
+    }
+
+    // adds our counts to a merged view
+    public void addTo(long[] merged) {
+        for (int i = 0; i < BUCKETS; i++) {
+            merged[i] += counts.get(i);
+        }
+    }
+
+    public static int indexOf(long nanos) {
+        if (nanos < 2 * SUB_BUCKETS)
+            return (int)Math.max(nanos, 0);
+
+        int shift = 63 - Long.numberOfLeadingZeros(nanos) - SUB_BITS;
+        int index = (shift + 1) * SUB_BUCKETS + (int)((nanos >>> shift) & (SUB_BUCKETS - 1));
+        return Math.min(index, BUCKETS - 1);
+    }
+
+    // highest value that goes into a bucket
+    public static long upperBound(int index) {
+        if (index < 2 * SUB_BUCKETS)
+            return index;
+
+        int shift = index / SUB_BUCKETS - 1;
+        long lower = (long)(SUB_BUCKETS + index % SUB_BUCKETS) << shift;
+        return lower + (1L << shift) - 1;
+    }
+
+    /**
+     * Value at the given quantile of merged counts, reported as the upper
+     * bound of its bucket. Returns 0 if nothing was recorded.
+     */
+    public static long quantile(long[] merged, double q) {
+        long total = 0;
+        for (long c : merged) {
+            total += c;
+        }
+
+        if (total == 0)
+            return 0;
+
+        long rank = (long)Math.ceil(q * total);
+        long seen = 0;
+        for (int i = 0; i < merged.length; i++) {
+            seen += merged[i];
+            if (seen >= rank && merged[i] > 0)
+                return upperBound(i);
+        }
+
+        return upperBound(merged.length - 1);
+    }
+}
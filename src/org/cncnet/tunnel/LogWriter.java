@@ -0,0 +1,154 @@
+/*
+ * Copyright (c) 2026 CnCNet tunnel contributors
+ *
+ * Permission to use, copy, modify, and distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+package org.cncnet.tunnel;
+
+import java.io.IOException;
+import java.util.Date;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Background log writer. Callers only timestamp the message and put it on a
+ * bounded lock-free queue, the formatting and the actual writes to stdout,
+ * the status window and the log file happen on the writer thread. When the
+ * queue is full new messages are dropped and counted instead of blocking.
+ */
+public class LogWriter implements Runnable {
+
+    private static class Entry {
+        public long time;
+        public String message;
+
+        public Entry(long time, String message) {
+            this.time = time;
+            this.message = message;
+        }
+    }
+
+    private final ConcurrentLinkedQueue<Entry> queue;
+    private final AtomicInteger pending;
+    private final AtomicLong dropped;
+    private final int capacity;
+    private volatile Thread thread;
+    private volatile boolean closing = false;
+
+    public LogWriter(int capacity) {
+        this.queue = new ConcurrentLinkedQueue<Entry>();
+        this.pending = new AtomicInteger();
+        this.dropped = new AtomicLong();
+        this.capacity = capacity;
+    }
+
+    public void start() {
+        thread = new Thread(this, "LogWriter");
+        thread.setDaemon(true);
+        thread.start();
+
+        Runtime.getRuntime().addShutdownHook(new Thread() {
+            @Override
+            public void run() {
+                close();
+            }
+        });
+    }
+
+    public boolean offer(String message) {
+        if (pending.incrementAndGet() > capacity) {
+            pending.decrementAndGet();
+            dropped.incrementAndGet();
+            return false;
+        }
+
+        queue.offer(new Entry(System.currentTimeMillis(), message));
+
+        // only wake the writer when it may have gone to sleep on an empty queue
+        if (pending.get() == 1) {
+            LockSupport.unpark(thread);
+        }
+
+        return true;
+    }
+
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    public int getPending() {
+        return pending.get();
+    }
+
+    // writes out whatever is still queued and stops the writer
+    public void close() {
+        closing = true;
+        Thread t = thread;
+        if (t != null) {
+            LockSupport.unpark(t);
+            try {
+                t.join(2000);
+            } catch (InterruptedException e) { }
+        }
+    }
+
+    @Override
+    public void run() {
+        long reportedDrops = 0;
+
+        while (true) {
+            Entry e = queue.poll();
+
+            if (e == null) {
+                long drops = dropped.get();
+                if (drops > reportedDrops) {
+                    write(System.currentTimeMillis(), (drops - reportedDrops) + " log messages dropped, the log queue was full.");
+                    reportedDrops = drops;
+                }
+
+                if (closing)
+                    return;
+
+                LockSupport.parkNanos(100000000L);
+                continue;
+            }
+
+            pending.decrementAndGet();
+            write(e.time, e.message);
+        }
+    }
+
+    private void write(long time, String s) {
+        String stamp = "[" + new Date(time).toString() + "] ";
+
+        for (String line : s.split("\n")) {
+            String out = stamp + line;
+            System.out.println(out);
+
+            if (Main.statusWindow != null) {
+                Main.statusWindow.log(out);
+            }
+
+            if (Main.logStream != null) {
+                out += "\n";
+                try {
+                    Main.logStream.write(out.getBytes());
+                } catch (IOException e) {
+
+                }
+            }
+        }
+    }
+}
@@ -19,14 +19,6 @@ import com.sun.net.httpserver.HttpServer;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.net.InetSocketAddress;
-import java.nio.BufferOverflowException;
-import java.nio.BufferUnderflowException;
-import java.nio.ByteBuffer;
-import java.nio.channels.DatagramChannel;
-import java.nio.channels.SelectionKey;
-import java.nio.channels.Selector;
-import java.util.Date;
-import java.util.Iterator;
 import javax.swing.JFrame;
 import javax.swing.UIManager;
 
@@ -39,6 +31,13 @@ public class Main {
     static FileOutputStream logStream = null;
     static StatusWindow statusWindow = null;
     static TunnelController controller = null;
+    static Forwarder[] forwarders = null;
+    static HttpExecutor httpExecutor = null;
+    static final LogWriter logWriter = new LogWriter(8192);
+
+    static {
+        logWriter.start();
+    }
 
     // -name <str>          Custom name for the tunnel
     // -maxclients <num>    Maximum number of ports to allocate
@@ -48,8 +47,28 @@ public class Main {
     // -nomaster            Don't register to master
     // -logfile <str>       Log everything to this file
     // -headless            Don't start up the GUI
-    // -iplimit             Enable (currently too strict) hosting rate limit
-    // -maintpw <str>       Enable maintenance mode with password
+    // -iplimit <num>       Games one ip can start in a burst, 0 disables the limit
+    // -iprate <num>        Games per minute one ip can start after the burst
+    // -maintpw <str>       Enable maintenance mode and config reloads over HTTP with password
+    // -workers <num>       Number of UDP forwarding threads (needs SO_REUSEPORT)
+    // -mtu <num>           Largest datagram forwarded, sizes the packet buffers
+    // -buffers <num>       Number of packet buffers per worker, all but one hold datagrams waiting to be sent
+    // -batch <num>         Datagrams a worker reads per wakeup before selecting again
+    // -latencysample <num> Time every Nth received datagram, 0 disables
+    // -httpthreads <num>   Threads handling HTTP requests
+    // -httpqueue <num>     HTTP requests waiting for a thread before the dispatcher handles them itself
+    // -httpbacklog <num>   Pending HTTP connections the OS will accept
+    // -clientrate <num>    KB per second one client can send, 0 for no limit
+    // -clientpps <num>     Packets per second one client can send, 0 for no limit
+    // -sessionrate <num>   KB per second one game can send, 0 for no limit
+    // -sessionpps <num>    Packets per second one game can send, 0 for no limit
+    // -burst <num>         Milliseconds of traffic a client or game can send ahead of its limits
+    // -blackhole <num>     Junk datagrams in 10 seconds before a source is blocked, 0 disables
+    // -snapshot <str>      Keep running games in this file and restore them on startup
+    // -config <str>        Settings file that is applied on top of these and reloaded when it changes
+    // -capture <str>       Packet capture ring file, capturing is switched on over HTTP with -maintpw
+    // -captureslots <num>  Datagrams the capture ring holds
+    // -capturesnap <num>   Bytes kept of each captured datagram
 
     protected static String name = "Unnamed CnCNet 5a tunnel";
     protected static int maxclients = 8;
@@ -60,8 +79,28 @@ public class Main {
     protected static boolean nomaster = false;
     protected static boolean headless = false;
     protected static int iplimit = 2;
+    protected static int iprate = 0;
     protected static String logfile = null;
     protected static String maintpw = null;
+    protected static int workers = 1;
+    protected static int mtu = 4096;
+    protected static int buffers = 64;
+    protected static int batch = 64;
+    protected static int latencysample = 64;
+    protected static int httpthreads = 4;
+    protected static int httpqueue = 256;
+    protected static int httpbacklog = 64;
+    protected static int clientrate = 0;
+    protected static int clientpps = 0;
+    protected static int sessionrate = 0;
+    protected static int sessionpps = 0;
+    protected static int burst = 1000;
+    protected static int blackhole = 50;
+    protected static String snapshot = null;
+    protected static String config = null;
+    protected static String capture = null;
+    protected static int captureslots = 65536;
+    protected static int capturesnap = 128;
 
     public static void main(String[] args) {
 
@@ -86,10 +125,50 @@ public class Main {
                 headless = true;
             } else if (args[i].equals("-iplimit") && i < args.length - 1) {
                 iplimit = Math.abs(Integer.parseInt(args[++i]));
+            } else if (args[i].equals("-iprate") && i < args.length - 1) {
+                iprate = Math.abs(Integer.parseInt(args[++i]));
             } else if (args[i].equals("-maintpw") && i < args.length - 1) {
                 maintpw = args[++i];
+            } else if (args[i].equals("-workers") && i < args.length - 1) {
+                workers = Math.max(Math.abs(Integer.parseInt(args[++i])), 1);
+            } else if (args[i].equals("-mtu") && i < args.length - 1) {
+                mtu = Math.min(Math.max(Math.abs(Integer.parseInt(args[++i])), 64), 65507);
+            } else if (args[i].equals("-buffers") && i < args.length - 1) {
+                buffers = Math.max(Math.abs(Integer.parseInt(args[++i])), 1);
+            } else if (args[i].equals("-batch") && i < args.length - 1) {
+                batch = Math.max(Math.abs(Integer.parseInt(args[++i])), 1);
+            } else if (args[i].equals("-latencysample") && i < args.length - 1) {
+                latencysample = Math.abs(Integer.parseInt(args[++i]));
+            } else if (args[i].equals("-httpthreads") && i < args.length - 1) {
+                httpthreads = Math.max(Math.abs(Integer.parseInt(args[++i])), 1);
+            } else if (args[i].equals("-httpqueue") && i < args.length - 1) {
+                httpqueue = Math.max(Math.abs(Integer.parseInt(args[++i])), 1);
+            } else if (args[i].equals("-httpbacklog") && i < args.length - 1) {
+                httpbacklog = Math.max(Math.abs(Integer.parseInt(args[++i])), 1);
+            } else if (args[i].equals("-clientrate") && i < args.length - 1) {
+                clientrate = Math.abs(Integer.parseInt(args[++i]));
+            } else if (args[i].equals("-clientpps") && i < args.length - 1) {
+                clientpps = Math.abs(Integer.parseInt(args[++i]));
+            } else if (args[i].equals("-sessionrate") && i < args.length - 1) {
+                sessionrate = Math.abs(Integer.parseInt(args[++i]));
+            } else if (args[i].equals("-sessionpps") && i < args.length - 1) {
+                sessionpps = Math.abs(Integer.parseInt(args[++i]));
+            } else if (args[i].equals("-burst") && i < args.length - 1) {
+                burst = Math.abs(Integer.parseInt(args[++i]));
+            } else if (args[i].equals("-blackhole") && i < args.length - 1) {
+                blackhole = Math.abs(Integer.parseInt(args[++i]));
+            } else if (args[i].equals("-snapshot") && i < args.length - 1) {
+                snapshot = args[++i];
+            } else if (args[i].equals("-config") && i < args.length - 1) {
+                config = args[++i];
+            } else if (args[i].equals("-capture") && i < args.length - 1) {
+                capture = args[++i];
+            } else if (args[i].equals("-captureslots") && i < args.length - 1) {
+                captureslots = Math.min(Math.max(Math.abs(Integer.parseInt(args[++i])), 16), 1 << 20);
+            } else if (args[i].equals("-capturesnap") && i < args.length - 1) {
+                capturesnap = Math.min(Math.max(Math.abs(Integer.parseInt(args[++i])), 4), 1024);
             } else if (args[i].equals("-help") || args[i].equals("-h") || args[i].equals("-?") || args[i].equals("/h") || args[i].equals("/?")) {
-                System.out.println("Arguments: [-name <string>] [-maxclients <number>] [-password <string>] [-port <number>] [-master <URL>] [-masterpw <string>] [-nomaster] [-logfile <path>] [-iplimit <number>] [-maintpw <string>]");
+                System.out.println("Arguments: [-name <string>] [-maxclients <number>] [-password <string>] [-port <number>] [-master <URL>] [-masterpw <string>] [-nomaster] [-logfile <path>] [-iplimit <number>] [-iprate <number>] [-maintpw <string>] [-workers <number>] [-mtu <number>] [-buffers <number>] [-batch <number>] [-latencysample <number>] [-httpthreads <number>] [-httpqueue <number>] [-httpbacklog <number>] [-clientrate <number>] [-clientpps <number>] [-sessionrate <number>] [-sessionpps <number>] [-burst <number>] [-blackhole <number>] [-snapshot <path>] [-config <path>] [-capture <path>] [-captureslots <number>] [-capturesnap <number>]");
                 return;
             } else {
                 Main.log("Unknown parameter: " + args[i]);
@@ -148,89 +227,80 @@ public class Main {
             Main.log("Logging to " + logfile);
         }
 
-        Main.log("Host rate limit is " + (iplimit > 0 ? iplimit + " games per ip" : "disabled") + ".");
+        // by default an ip gets its whole burst back every minute
+        if (iprate == 0)
+            iprate = iplimit;
+
+        Main.log("Host rate limit is " + (iplimit > 0 ? iplimit + " games per ip, refilling " + iprate + " per minute" : "disabled") + ".");
+
+        if (workers > 1 && !Forwarder.isReusePortSupported()) {
+            Main.log("SO_REUSEPORT is not supported on this platform, using a single worker.");
+            workers = 1;
+        }
+
+        Shaper.Limit clientLimit = new Shaper.Limit(clientrate * 1024L, clientpps, burst);
+        Shaper.Limit sessionLimit = new Shaper.Limit(sessionrate * 1024L, sessionpps, burst);
+        Main.log("Per client : " + clientLimit);
+        Main.log("Per game   : " + sessionLimit);
+
+        Main.log("Workers    : " + workers);
+        Main.log("Batch size : " + batch);
+        Main.log("Blackhole  : " + (blackhole > 0 ? "after " + blackhole + " junk datagrams in 10 seconds" : "disabled"));
+        Main.log("HTTP       : " + httpthreads + " threads, queue " + httpqueue + ", backlog " + httpbacklog);
+        // a worker's buffers are one allocation, keep it under 2 GB whatever the mtu
+        buffers = Math.min(buffers, Integer.MAX_VALUE / mtu);
+        Main.log("Buffers    : " + workers + " x " + buffers + " x " + mtu + " bytes = " + ((long)workers * buffers * mtu / 1024) + " KB direct memory");
 
         try {
-            Selector selector = Selector.open();
-            DatagramChannel channel = DatagramChannel.open();
-            channel.configureBlocking(false);
-            channel.socket().bind(new InetSocketAddress("0.0.0.0", port));
-            channel.register(selector, SelectionKey.OP_READ);
+            controller = new TunnelController(port,
+                new Config(name, password, maxclients, nomaster ? null : master, masterpw, iplimit, iprate, clientLimit, sessionLimit));
+
+            if (config != null) {
+                Main.log("Configuration from " + config + ": " + controller.setConfigFile(config) + ".");
+            }
 
-            controller = new TunnelController(name, password, port, maxclients, nomaster ? null : master, masterpw, iplimit);
+            if (capture != null) {
+                controller.setCapture(new PacketCapture(capture, captureslots, capturesnap));
+                Main.log("Capture    : " + captureslots + " datagrams of up to " + capturesnap + " bytes in " + capture
+                    + (maintpw == null ? ", needs -maintpw to be switched on" : ""));
+            }
+
+            if (snapshot != null) {
+                long started = System.currentTimeMillis();
+                int restored = controller.restore(new SessionSnapshot(snapshot));
+                Main.log("Restored " + restored + " clients from " + snapshot + " in " + (System.currentTimeMillis() - started) + " ms.");
+            }
 
             // setup our HTTP server
-            HttpServer server = HttpServer.create(new InetSocketAddress(port), 4);
+            HttpServer server = HttpServer.create(new InetSocketAddress(port), httpbacklog);
             server.createContext("/request", controller);
             server.createContext("/status", controller);
+            server.createContext("/metrics", controller);
             if (maintpw != null) {
                 server.createContext("/maintenance/" + maintpw, controller);
+                server.createContext("/reload/" + maintpw, controller);
+                if (capture != null) {
+                    server.createContext("/capture/" + maintpw, controller);
+                }
             }
-            server.setExecutor(null);
+            httpExecutor = new HttpExecutor(httpthreads, httpqueue);
+            server.setExecutor(httpExecutor);
             server.start();
 
+            forwarders = new Forwarder[workers];
+            for (int i = 0; i < workers; i++) {
+                forwarders[i] = new Forwarder(i, controller, port, workers > 1, new BufferPool(buffers, mtu), new SourceFilter(blackhole), batch, latencysample);
+            }
+
             new Thread(controller).start();
 
-            ByteBuffer buf = ByteBuffer.allocate(4096);
-
-            while (true) {
-                if (selector.select() > 0) {
-
-                    long now = System.currentTimeMillis();
-
-                    for (Iterator<SelectionKey> i = selector.selectedKeys().iterator(); i.hasNext();) {
-                        SelectionKey k = i.next();
-                        DatagramChannel chan = (DatagramChannel)k.channel();
-
-                        try {
-                            buf.clear();
-                            InetSocketAddress from = (InetSocketAddress)chan.receive(buf);
-                            buf.flip();
-
-                            short hdrFrom = buf.getShort();
-                            short hdrTo = buf.getShort();
-
-                            buf.rewind();
-
-                            Client clientFrom = controller.getClient(hdrFrom);
-                            Client clientTo = controller.getClient(hdrTo);
-
-                            if (clientFrom != null) {
-                                if (clientFrom.getAddress() == null) {
-                                    clientFrom.setAddress(from);
-                                } else {
-                                    // don't allow faking client id
-                                    if (!from.getAddress().equals(clientFrom.getAddress().getAddress()))
-                                        clientFrom = null;
-                                }
-                            }
-
-                            if (clientFrom == null || clientTo == null || hdrFrom == hdrTo || !clientTo.isKnownClient(clientFrom.getId())) {
-                                Main.log("Ignoring packet from " + hdrFrom + " to " + hdrTo + " (" + from + "), was " + buf.limit() + " bytes");
-                            } else {
-                                clientFrom.setLastPacket(now);
-
-                                if (clientTo.getAddress() != null) {
-                                    chan.send(buf, clientTo.getAddress());
-                                }
-                            }
-                        } catch (IOException e) {
-                            Main.log("IOException when handling event: " + e.getMessage());
-                        } catch (BufferUnderflowException e) {
-                            Main.log("BufferUnderflowException when handling event: " + e.getMessage());
-                        } catch (BufferOverflowException e) {
-                            Main.log("BufferOverflowException when handling event: " + e.getMessage());
-                        }
-
-                        if (!k.channel().isOpen()) {
-                            k.cancel();
-                        }
-
-                        i.remove();
-                    }
-                }
+            // the first worker keeps running on this thread
+            for (int i = 1; i < workers; i++) {
+                new Thread(forwarders[i], "Forwarder-" + i).start();
             }
 
+            forwarders[0].run();
+
         } catch (Exception e) {
             Main.log(e.toString());
             e.printStackTrace();
@@ -239,23 +309,7 @@ public class Main {
     }
 
     public static void log(String s) {
-        for (String line : s.split("\n")) {
-            String out = "[" + new Date().toString() + "] " + line;
-            System.out.println(out);
-
-            if (statusWindow != null) {
-                statusWindow.log(out);
-            }
-
-            if (logStream != null) {
-                out += "\n";
-                try {
-                    logStream.write(out.getBytes());
-                } catch (IOException e) {
-
-                }
-            }
-        }
+        logWriter.offer(s);
     }
 
     public static void status(String s) {
@@ -0,0 +1,226 @@
+/*
+ * Copyright (c) 2026 CnCNet tunnel contributors
+ *
+ * Permission to use, copy, modify, and distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+package org.cncnet.tunnel;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URI;
+import java.net.URLEncoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+
+/**
+ * Registers the tunnel with the master server. Heartbeats are sent with an
+ * asynchronous HTTP client from a scheduler of their own, so a slow or dead
+ * master never holds up the reaper or an HTTP handler. Only one heartbeat
+ * is in flight at a time, the next one is scheduled when it completes.
+ *
+ * Failed heartbeats are retried sooner with an exponential backoff up to
+ * the normal interval, and every delay is jittered so tunnels restarted
+ * together don't keep hitting the master in the same second.
+ *
+ * The master, name and passwords come from the controller's current config
+ * on every heartbeat, so a reload takes effect with the next one.
+ */
+public class MasterClient {
+
+    private static final long INTERVAL = 60000;
+    private static final long RETRY = 5000;
+    private static final Duration TIMEOUT = Duration.ofSeconds(5);
+
+    private final TunnelController controller;
+    private final int port;
+    private final ScheduledExecutorService scheduler;
+    private final HttpClient client;
+    // everything but the client counts, built again only when the config changes
+    private Config prefixConfig = null;
+    private String prefix = null;
+    private int failures = 0;
+    private volatile boolean connected = false;
+    private volatile CompletableFuture<?> maintenanceSent = null;
+
+    public MasterClient(TunnelController controller, int port) {
+        this.controller = controller;
+        this.port = port;
+
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "Master");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+
+        // plain HTTP/1.1 that follows redirects, like HttpURLConnection did
+        this.client = HttpClient.newBuilder()
+            .executor(scheduler)
+            .connectTimeout(TIMEOUT)
+            .version(HttpClient.Version.HTTP_1_1)
+            .followRedirects(HttpClient.Redirect.NORMAL)
+            .build();
+    }
+
+    public void start() {
+        schedule(0);
+    }
+
+    public boolean isConnected() {
+        return connected;
+    }
+
+    /**
+     * Tells the master we are going away. Regular heartbeats stop once the
+     * controller is in maintenance, this one goes out right away.
+     */
+    public void notifyMaintenance() {
+        maintenanceSent = send(true);
+    }
+
+    // gives the maintenance notice a chance to reach the master before we quit
+    public void awaitMaintenance() {
+        CompletableFuture<?> sent = maintenanceSent;
+        if (sent == null)
+            return;
+
+        try {
+            sent.get(TIMEOUT.toMillis() * 2, TimeUnit.MILLISECONDS);
+        } catch (Exception e) { }
+    }
+
+    private void schedule(long delay) {
+        scheduler.schedule(new Runnable() {
+            public void run() {
+                if (controller.isMaintenance())
+                    return;
+
+                // the next heartbeat is scheduled when this one completes, unless
+                // it never went out, then it has to be done here or they stop
+                try {
+                    if (controller.getConfig().getMaster() == null) {
+                        // not registering, look again later in case a reload turns it on
+                        connected = false;
+                        schedule(INTERVAL);
+                        return;
+                    }
+
+                    Main.log("Sending a heartbeat to master server.");
+                    if (send(false) == null)
+                        retry();
+                } catch (RuntimeException e) {
+                    Main.log("Failed to send heartbeat: " + e.toString());
+                    Metrics.heartbeatsFailed.increment();
+                    retry();
+                }
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    // backs off from RETRY up to the regular interval while the master can't be reached
+    private void retry() {
+        connected = false;
+        failures++;
+        schedule(jitter(Math.min(RETRY << Math.min(failures - 1, 16), INTERVAL)));
+    }
+
+    private synchronized String prefix(Config config) {
+        if (config != prefixConfig) {
+            try {
+                prefix = config.getMaster() + "?version=2"
+                    + "&name=" + URLEncoder.encode(config.getName(), "US-ASCII")
+                    + "&password=" + (config.getPassword() != null ? "1" : "0")
+                    + "&port=" + port
+                    + (config.getMasterPassword() != null ? "&masterpw=" + URLEncoder.encode(config.getMasterPassword(), "US-ASCII") : "");
+            } catch (UnsupportedEncodingException e) {
+                throw new IllegalStateException(e);
+            }
+            prefixConfig = config;
+        }
+        return prefix;
+    }
+
+    private CompletableFuture<?> send(final boolean maintenance) {
+        Config config = controller.getConfig();
+        if (config.getMaster() == null)
+            return null;
+
+        HttpRequest request;
+        try {
+            request = HttpRequest.newBuilder(URI.create(prefix(config)
+                    + "&clients=" + controller.getClientCount()
+                    + "&maxclients=" + config.getMaxClients()
+                    + (maintenance ? "&maintenance=1" : "")))
+                .timeout(TIMEOUT)
+                .GET()
+                .build();
+        } catch (IllegalArgumentException e) {
+            Main.log("Failed to send heartbeat: " + e.toString());
+            Metrics.heartbeatsFailed.increment();
+            return null;
+        }
+
+        return client.sendAsync(request, HttpResponse.BodyHandlers.discarding()).whenComplete(new BiConsumer<HttpResponse<Void>, Throwable>() {
+            public void accept(HttpResponse<Void> response, Throwable error) {
+                boolean ok = false;
+
+                if (error != null) {
+                    Main.log("Failed to send heartbeat: " + (error.getCause() != null ? error.getCause() : error).toString());
+                } else if (response.statusCode() == 404) {
+                    Main.log("Master server reported error 404.");
+                } else if (response.statusCode() < 200 || response.statusCode() >= 300) {
+                    Main.log("Master server reported error " + response.statusCode() + ".");
+                } else {
+                    ok = true;
+                }
+
+                if (ok) {
+                    Metrics.heartbeatsSent.increment();
+                } else {
+                    Metrics.heartbeatsFailed.increment();
+                }
+
+                if (maintenance) {
+                    if (ok) {
+                        Main.log("Master notified of maintenance.\n");
+                    }
+                    connected = false;
+                    return;
+                }
+
+                if (!ok) {
+                    retry();
+                    return;
+                }
+
+                connected = true;
+                failures = 0;
+                schedule(jitter(INTERVAL));
+            }
+        });
+    }
+
+    // +-20% so the delay never lines up with other tunnels for long
+    private static long jitter(long delay) {
+        return delay * 4 / 5 + ThreadLocalRandom.current().nextLong(delay * 2 / 5 + 1);
+    }
+}
@@ -0,0 +1,213 @@
+/*
+ * Copyright (c) 2026 CnCNet tunnel contributors
+ *
+ * Permission to use, copy, modify, and distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+package org.cncnet.tunnel;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Tunnel wide counters. They are all LongAdders so the forwarding workers
+ * can bump them without fighting over a cache line, and they are written
+ * out in the Prometheus text format on /metrics.
+ */
+public class Metrics {
+
+    public enum Drop {
+        UNKNOWN_SENDER("unknown_sender"),
+        UNKNOWN_DESTINATION("unknown_destination"),
+        UNBOUND_DESTINATION("unbound_destination"),
+        SPOOFED("spoofed"),
+        NOT_FRIEND("not_friend"),
+        SELF_SEND("self_send"),
+        CLIENT_LIMIT("client_limit"),
+        SESSION_LIMIT("session_limit"),
+        BLACKHOLED("blackholed"),
+        UNDERFLOW("underflow");
+
+        public final String label;
+        public final LongAdder count = new LongAdder();
+
+        Drop(String label) {
+            this.label = label;
+        }
+    }
+
+    public enum Rejection {
+        UNAUTHORIZED("unauthorized"),
+        INVALID("invalid"),
+        MAINTENANCE("maintenance"),
+        RATE_LIMITED("rate_limited"),
+        FULL("full");
+
+        public final String label;
+        public final LongAdder count = new LongAdder();
+
+        Rejection(String label) {
+            this.label = label;
+        }
+    }
+
+    public static final LongAdder packetsForwarded = new LongAdder();
+    public static final LongAdder bytesForwarded = new LongAdder();
+    // send() returned 0, the socket buffer was full and the datagram was queued
+    public static final LongAdder sendsQueued = new LongAdder();
+    public static final LongAdder sendQueueDrained = new LongAdder();
+    public static final LongAdder sendQueueDropped = new LongAdder();
+    public static final LongAdder sourcesBlackholed = new LongAdder();
+
+    public static final LongAdder sessionsCreated = new LongAdder();
+    public static final LongAdder clientsAllocated = new LongAdder();
+    public static final LongAdder clientsTimedOut = new LongAdder();
+
+    public static final LongAdder heartbeatsSent = new LongAdder();
+    public static final LongAdder heartbeatsFailed = new LongAdder();
+
+    public static void write(StringBuilder out) {
+        counter(out, "packets_forwarded_total", "Datagrams forwarded between clients.", packetsForwarded.sum());
+        counter(out, "bytes_forwarded_total", "Bytes forwarded between clients, tunnel header included.", bytesForwarded.sum());
+
+        header(out, "packets_dropped_total", "counter", "Datagrams dropped by the forwarder.");
+        for (Drop d : Drop.values()) {
+            sample(out, "packets_dropped_total", "reason=\"" + d.label + "\"", d.count.sum());
+        }
+
+        counter(out, "sends_queued_total", "Datagrams queued because the socket send buffer was full.", sendsQueued.sum());
+        counter(out, "send_queue_drained_total", "Queued datagrams sent once the socket had room.", sendQueueDrained.sum());
+        counter(out, "send_queue_dropped_total", "Queued datagrams lost to a full send queue or a send error.", sendQueueDropped.sum());
+        counter(out, "sources_blackholed_total", "Source addresses blocked for sending junk.", sourcesBlackholed.sum());
+        counter(out, "sessions_created_total", "Games allocated.", sessionsCreated.sum());
+        counter(out, "clients_allocated_total", "Client slots allocated.", clientsAllocated.sum());
+        counter(out, "clients_timed_out_total", "Client slots released after going quiet.", clientsTimedOut.sum());
+
+        header(out, "requests_rejected_total", "counter", "Game requests that were turned down.");
+        for (Rejection r : Rejection.values()) {
+            sample(out, "requests_rejected_total", "reason=\"" + r.label + "\"", r.count.sum());
+        }
+
+        counter(out, "heartbeats_sent_total", "Heartbeats the master server accepted.", heartbeatsSent.sum());
+        counter(out, "heartbeats_failed_total", "Heartbeats that failed.", heartbeatsFailed.sum());
+        counter(out, "log_messages_dropped_total", "Log messages dropped because the log queue was full.", Main.logWriter.getDropped());
+        gauge(out, "log_queue_depth", "Log messages waiting to be written.", Main.logWriter.getPending());
+
+        Runtime runtime = Runtime.getRuntime();
+        gauge(out, "heap_used_bytes", "Java heap in use.", runtime.totalMemory() - runtime.freeMemory());
+
+        Forwarder[] forwarders = Main.forwarders;
+        if (forwarders != null) {
+            header(out, "worker_wakeups_total", "counter", "Selector wakeups per forwarding worker.");
+            for (Forwarder f : forwarders) {
+                sample(out, "worker_wakeups_total", worker(f), f.getWakeups());
+            }
+
+            header(out, "worker_packets_total", "counter", "Datagrams received per forwarding worker.");
+            for (Forwarder f : forwarders) {
+                sample(out, "worker_packets_total", worker(f), f.getPackets());
+            }
+
+            header(out, "worker_batch_limit_total", "counter", "Wakeups that used up the whole batch budget.");
+            for (Forwarder f : forwarders) {
+                sample(out, "worker_batch_limit_total", worker(f), f.getBudgetExhausted());
+            }
+
+            header(out, "worker_batch_size", "histogram", "Datagrams read per wakeup.");
+            for (Forwarder f : forwarders) {
+                long[] sizes = f.getBatchSizes();
+                long cumulative = 0;
+                int buckets = 33 - Integer.numberOfLeadingZeros(f.getBatch());
+                for (int i = 0; i < buckets; i++) {
+                    cumulative += sizes[i];
+                    sample(out, "worker_batch_size_bucket", worker(f) + ",le=\"" + ((1L << i) - 1) + "\"", cumulative);
+                }
+                sample(out, "worker_batch_size_bucket", worker(f) + ",le=\"+Inf\"", cumulative);
+                sample(out, "worker_batch_size_count", worker(f), cumulative);
+                sample(out, "worker_batch_size_sum", worker(f), f.getPackets());
+            }
+
+            long[] merged = new long[LatencyHistogram.BUCKETS];
+            long max = 0;
+            long sum = 0;
+            for (Forwarder f : forwarders) {
+                f.getLatency().addTo(merged);
+                max = Math.max(max, f.getLatency().getMax());
+                sum += f.getLatency().getSum();
+            }
+
+            long samples = 0;
+            for (long c : merged) {
+                samples += c;
+            }
+
+            header(out, "forward_latency_seconds", "summary", "Sampled time from receiving a datagram to handing it to the socket.");
+            sample(out, "forward_latency_seconds", "quantile=\"0.5\"", Math.min(LatencyHistogram.quantile(merged, 0.5), max) / 1e9);
+            sample(out, "forward_latency_seconds", "quantile=\"0.99\"", Math.min(LatencyHistogram.quantile(merged, 0.99), max) / 1e9);
+            sample(out, "forward_latency_seconds", "quantile=\"0.999\"", Math.min(LatencyHistogram.quantile(merged, 0.999), max) / 1e9);
+            sample(out, "forward_latency_seconds_sum", null, sum / 1e9);
+            sample(out, "forward_latency_seconds_count", null, samples);
+            gauge(out, "forward_latency_max_seconds", "Slowest sampled datagram.", max / 1e9);
+
+            header(out, "worker_send_queue_depth", "gauge", "Datagrams waiting for room in the socket send buffer.");
+            for (Forwarder f : forwarders) {
+                sample(out, "worker_send_queue_depth", worker(f), f.getQueueDepth());
+            }
+
+            header(out, "worker_buffers_free", "gauge", "Unused packet buffers per forwarding worker.");
+            for (Forwarder f : forwarders) {
+                sample(out, "worker_buffers_free", worker(f), f.getPool().getAvailable());
+            }
+        }
+
+        HttpExecutor http = Main.httpExecutor;
+        if (http != null) {
+            counter(out, "http_requests_total", "HTTP exchanges handled.", http.getRequests());
+            gauge(out, "http_queue_depth", "HTTP exchanges waiting for a thread.", http.getQueueDepth());
+            counter(out, "http_wait_seconds_total", "Time HTTP exchanges spent queued.", http.getWaitNanos() / 1e9);
+            counter(out, "http_service_seconds_total", "Time spent handling HTTP exchanges.", http.getServiceNanos() / 1e9);
+            gauge(out, "http_max_seconds", "Slowest HTTP exchange, queueing included.", http.getMaxNanos() / 1e9);
+        }
+    }
+
+    public static void counter(StringBuilder out, String name, String help, double value) {
+        header(out, name, "counter", help);
+        sample(out, name, null, value);
+    }
+
+    public static void gauge(StringBuilder out, String name, String help, double value) {
+        header(out, name, "gauge", help);
+        sample(out, name, null, value);
+    }
+
+    private static void header(StringBuilder out, String name, String type, String help) {
+        out.append("# HELP cncnet_tunnel_").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE cncnet_tunnel_").append(name).append(' ').append(type).append('\n');
+    }
+
+    private static void sample(StringBuilder out, String name, String labels, double value) {
+        out.append("cncnet_tunnel_").append(name);
+        if (labels != null) {
+            out.append('{').append(labels).append('}');
+        }
+        out.append(' ');
+        if (value == Math.rint(value) && !Double.isInfinite(value)) {
+            out.append((long)value);
+        } else {
+            out.append(value);
+        }
+        out.append('\n');
+    }
+
+    private static String worker(Forwarder f) {
+        return "worker=\"" + f.getIndex() + "\"";
+    }
+}
@@ -0,0 +1,312 @@
+/*
+ * Copyright (c) 2026 CnCNet tunnel contributors
+ *
+ * Permission to use, copy, modify, and distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+package org.cncnet.tunnel;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Packet capture for debugging live games. Datagrams from the clients and
+ * games that have capture turned on are written to a fixed size ring of
+ * slots in a memory mapped file. Each slot holds when the datagram was seen,
+ * what happened to it, the sender and the first bytes of the datagram.
+ *
+ * Writers claim a slot with one atomic increment and fill it with absolute
+ * puts, so any worker can record without locks or allocation. The sequence
+ * number is written last, and a slot that is still zero is skipped when the
+ * ring is read.
+ *
+ * The ring can be exported as a pcap file with LINKTYPE_USER0, every packet
+ * starting with a 16 byte pseudo header (see export). This works over HTTP
+ * while the tunnel runs, or from the file afterwards with:
+ *
+ *   java -cp tunnel.jar org.cncnet.tunnel.PacketCapture ring.bin out.pcap
+ */
+public class PacketCapture {
+
+    public static final byte FORWARDED = 1;
+    public static final byte QUEUED = 2;
+    public static final byte DROPPED = 3;
+
+    private static final int MAGIC = 0x434e4350;
+    private static final int VERSION = 1;
+    private static final int HEADER = 64;
+    private static final int LINKTYPE_USER0 = 147;
+
+    // slot layout
+    private static final int SEQUENCE = 0;
+    private static final int TIME = 8;
+    private static final int KIND = 16;
+    private static final int REASON = 17;
+    private static final int FROM = 20;
+    private static final int TO = 22;
+    private static final int LENGTH = 24;
+    private static final int PORT = 28;
+    private static final int ADDRESS = 32;
+    private static final int DATA = 40;
+
+    private final String path;
+    private final MappedByteBuffer map;
+    private final int slots;
+    private final int slotSize;
+    private final int snap;
+    private final AtomicLong sequence = new AtomicLong();
+
+    // wall clock in microseconds, kept on the monotonic clock after startup
+    private final long startMicros;
+    private final long startNanos;
+
+    private final AtomicLongArray clients = new AtomicLongArray(IdAllocator.SIZE / 64);
+    private volatile boolean all = false;
+    // client bits and sessions with capture on, lets the hot path bail out early
+    private volatile int enabled = 0;
+
+    public PacketCapture(String path, int slots, int snap) throws IOException {
+        this.path = path;
+        this.slots = slots;
+        this.snap = snap;
+        this.slotSize = (DATA + snap + 7) & ~7;
+        this.startMicros = System.currentTimeMillis() * 1000;
+        this.startNanos = System.nanoTime();
+
+        RandomAccessFile file = new RandomAccessFile(path, "rw");
+        try {
+            long size = HEADER + (long)slots * slotSize;
+            file.setLength(0);
+            file.setLength(size);
+            map = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+        } finally {
+            file.close();
+        }
+
+        map.putInt(0, MAGIC);
+        map.putInt(4, VERSION);
+        map.putInt(8, slots);
+        map.putInt(12, slotSize);
+        map.putInt(16, snap);
+    }
+
+    private PacketCapture(String path, MappedByteBuffer map) throws IOException {
+        if (map.getInt(0) != MAGIC || map.getInt(4) != VERSION)
+            throw new IOException(path + " is not a capture file.");
+
+        this.path = path;
+        this.map = map;
+        this.slots = map.getInt(8);
+        this.slotSize = map.getInt(12);
+        this.snap = map.getInt(16);
+        this.startMicros = 0;
+        this.startNanos = 0;
+    }
+
+    public String getPath() {
+        return path;
+    }
+
+    public int getSlots() {
+        return slots;
+    }
+
+    public int getSnap() {
+        return snap;
+    }
+
+    public long getRecorded() {
+        return sequence.get();
+    }
+
+    public boolean isCapturingAll() {
+        return all;
+    }
+
+    public int getEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Called for every datagram, so it has to be cheap when nothing is being
+     * captured. A null client is an unknown sender, those only show up when
+     * capturing everything.
+     */
+    public boolean wants(Client client) {
+        if (all)
+            return true;
+
+        if (enabled == 0 || client == null)
+            return false;
+
+        int id = client.getId() & 0xFFFF;
+        return (clients.get(id >>> 6) & (1L << id)) != 0 || client.getSession().isCaptured();
+    }
+
+    public void setAll(boolean on) {
+        all = on;
+    }
+
+    public synchronized void setClient(short clientId, boolean on) {
+        int id = clientId & 0xFFFF;
+        long bit = 1L << id;
+        long cur;
+        do {
+            cur = clients.get(id >>> 6);
+            if (((cur & bit) != 0) == on)
+                return;
+        } while (!clients.compareAndSet(id >>> 6, cur, on ? cur | bit : cur & ~bit));
+        enabled += on ? 1 : -1;
+    }
+
+    public synchronized void setSession(Session session, boolean on) {
+        if (session.isCaptured() == on)
+            return;
+
+        session.setCaptured(on);
+        enabled += on ? 1 : -1;
+    }
+
+    /**
+     * Records one datagram. The buffer is read with absolute gets from 0 to
+     * its limit, so its position doesn't matter and isn't touched.
+     */
+    public void record(ByteBuffer buf, InetSocketAddress from, byte kind, Metrics.Drop reason) {
+        long seq = sequence.incrementAndGet();
+        int at = HEADER + (int)((seq - 1) % slots) * slotSize;
+        int length = buf.limit();
+
+        // mark the slot as being written in case a reader looks at it now
+        map.putLong(at + SEQUENCE, 0);
+        map.putLong(at + TIME, startMicros + (System.nanoTime() - startNanos) / 1000);
+        map.put(at + KIND, kind);
+        map.put(at + REASON, reason == null ? (byte)-1 : (byte)reason.ordinal());
+        map.putShort(at + FROM, length >= 2 ? buf.getShort(0) : 0);
+        map.putShort(at + TO, length >= 4 ? buf.getShort(2) : 0);
+        map.putInt(at + LENGTH, length);
+        map.putInt(at + PORT, from.getPort());
+        // the workers are bound to IPv4 only and an Inet4Address hashes to its address
+        map.putInt(at + ADDRESS, from.getAddress().hashCode());
+
+        int captured = Math.min(length, snap);
+        int i = 0;
+        for (; i + 8 <= captured; i += 8) {
+            map.putLong(at + DATA + i, buf.getLong(i));
+        }
+        for (; i < captured; i++) {
+            map.put(at + DATA + i, buf.get(i));
+        }
+
+        map.putLong(at + SEQUENCE, seq);
+    }
+
+    /**
+     * Writes the ring out as pcap, oldest first. Every packet starts with a
+     * pseudo header, all in network order:
+     *
+     *   0  byte   kind, 1 forwarded, 2 queued, 3 dropped
+     *   1  byte   drop reason, the Metrics.Drop ordinal or 255
+     *   2  short  source port
+     *   4  int    source IPv4 address
+     *   8  int    original datagram length
+     *  12  int    reserved
+     *
+     * followed by the captured bytes of the datagram, tunnel header first.
+     */
+    public void export(OutputStream os) throws IOException {
+        // snapshot the filled slots by sequence, then read them in order
+        long[] order = new long[slots];
+        int count = 0;
+        for (int slot = 0; slot < slots; slot++) {
+            long seq = map.getLong(HEADER + slot * slotSize + SEQUENCE);
+            if (seq > 0) {
+                order[count++] = (seq << 24) | slot;
+            }
+        }
+        Arrays.sort(order, 0, count);
+
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(os, 65536));
+        ByteBuffer le = ByteBuffer.allocate(24).order(ByteOrder.LITTLE_ENDIAN);
+
+        le.putInt(0xa1b2c3d4).putShort((short)2).putShort((short)4).putInt(0).putInt(0).putInt(16 + snap).putInt(LINKTYPE_USER0);
+        out.write(le.array(), 0, 24);
+
+        byte[] data = new byte[snap];
+        for (int i = 0; i < count; i++) {
+            int at = HEADER + (int)(order[i] & 0xFFFFFF) * slotSize;
+            long seq = order[i] >>> 24;
+
+            long time = map.getLong(at + TIME);
+            int length = map.getInt(at + LENGTH);
+            int captured = Math.min(length, snap);
+            byte kind = map.get(at + KIND);
+            byte reason = map.get(at + REASON);
+            int port = map.getInt(at + PORT);
+            int address = map.getInt(at + ADDRESS);
+            for (int j = 0; j < captured; j++) {
+                data[j] = map.get(at + DATA + j);
+            }
+
+            // overwritten while we were reading, leave it out
+            if (map.getLong(at + SEQUENCE) != seq)
+                continue;
+
+            le.clear();
+            le.putInt((int)(time / 1000000)).putInt((int)(time % 1000000)).putInt(16 + captured).putInt(16 + length);
+            out.write(le.array(), 0, 16);
+
+            out.writeByte(kind);
+            out.writeByte(reason);
+            out.writeShort(port);
+            out.writeInt(address);
+            out.writeInt(length);
+            out.writeInt(0);
+            out.write(data, 0, captured);
+        }
+
+        out.flush();
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length != 2) {
+            System.out.println("Arguments: <capture file> <pcap file>");
+            return;
+        }
+
+        RandomAccessFile file = new RandomAccessFile(args[0], "r");
+        PacketCapture capture;
+        try {
+            capture = new PacketCapture(args[0], file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, file.length()));
+        } finally {
+            file.close();
+        }
+
+        OutputStream out = new FileOutputStream(args[1]);
+        try {
+            capture.export(out);
+        } finally {
+            out.close();
+        }
+    }
+}
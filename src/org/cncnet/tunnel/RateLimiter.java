@@ -0,0 +1,143 @@
+/*
+ * Copyright (c) 2026 CnCNet tunnel contributors
+ *
+ * Permission to use, copy, modify, and distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+package org.cncnet.tunnel;
+
+import java.net.InetAddress;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Per address token buckets for limiting how fast hosts can start games.
+ * Buckets are refilled lazily when they are used, so nothing has to sweep
+ * them. Addresses are spread over a fixed number of stripes, each an LRU map
+ * with its own lock and a size cap, so a flood of addresses only pushes out
+ * the least recently seen ones instead of growing the map.
+ */
+public class RateLimiter {
+
+    private static final int STRIPES = 16;
+    private static final int STRIPE_SIZE = 4096;
+
+    private static class Bucket {
+        public double tokens;
+        public long updated;
+
+        public Bucket(double tokens, long updated) {
+            this.tokens = tokens;
+            this.updated = updated;
+        }
+    }
+
+    private static class Stripe extends LinkedHashMap<InetAddress, Bucket> {
+        // never serialized, keeps -Xlint quiet
+        private static final long serialVersionUID = 1L;
+
+        private final AtomicLong evictions;
+
+        public Stripe(AtomicLong evictions) {
+            super(16, 0.75f, true);
+            this.evictions = evictions;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<InetAddress, Bucket> eldest) {
+            if (size() > STRIPE_SIZE) {
+                evictions.incrementAndGet();
+                return true;
+            }
+            return false;
+        }
+    }
+
+    private final Stripe[] stripes;
+    private final int burst;
+    private final double refillPerMs;
+    private final AtomicLong evictions;
+
+    /**
+     * @param burst how many games an address can start at once
+     * @param perMinute how many games per minute are refilled
+     */
+    public RateLimiter(int burst, int perMinute) {
+        this.burst = burst;
+        this.refillPerMs = perMinute / 60000.0;
+        this.evictions = new AtomicLong();
+        this.stripes = new Stripe[STRIPES];
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new Stripe(evictions);
+        }
+    }
+
+    public boolean tryAcquire(InetAddress address, long now) {
+        Stripe stripe = stripeFor(address);
+
+        synchronized (stripe) {
+            Bucket b = stripe.get(address);
+            if (b == null) {
+                b = new Bucket(burst, now);
+                stripe.put(address, b);
+            } else {
+                refill(b, now);
+            }
+
+            if (b.tokens < 1)
+                return false;
+
+            b.tokens -= 1;
+            return true;
+        }
+    }
+
+    // gives back a token for a game that couldn't be started after all
+    public void refund(InetAddress address, long now) {
+        Stripe stripe = stripeFor(address);
+
+        synchronized (stripe) {
+            Bucket b = stripe.get(address);
+            if (b != null) {
+                refill(b, now);
+                b.tokens = Math.min(burst, b.tokens + 1);
+            }
+        }
+    }
+
+    public int size() {
+        int size = 0;
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                size += stripe.size();
+            }
+        }
+        return size;
+    }
+
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    private void refill(Bucket b, long now) {
+        if (now > b.updated) {
+            b.tokens = Math.min(burst, b.tokens + (now - b.updated) * refillPerMs);
+            b.updated = now;
+        }
+    }
+
+    private Stripe stripeFor(InetAddress address) {
+        int h = address.hashCode() * 0x9E3779B1;
+        return stripes[(h >>> 16) & (STRIPES - 1)];
+    }
+}
@@ -0,0 +1,136 @@
+/*
+ * Copyright (c) 2026 CnCNet tunnel contributors
+ *
+ * Permission to use, copy, modify, and distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+package org.cncnet.tunnel;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * One game, the group of clients allocated by a single request. Every
+ * client has a slot index in its session and membership is kept as a
+ * bitmask of slots, so checking if two clients may talk is a bit test.
+ */
+public class Session {
+
+    public static final int MAX_CLIENTS = 32;
+
+    private static final AtomicLong nextId = new AtomicLong();
+
+    private final long id;
+    private final long created;
+    private final short[] clientIds;
+    private final AtomicInteger members;
+    private final LongAdder packets;
+    private final LongAdder bytes;
+    private final Shaper shaper;
+    private volatile boolean captured = false;
+    private volatile long lastPacket;
+
+    public Session(short[] clientIds) {
+        this(clientIds, System.currentTimeMillis());
+    }
+
+    // a session restored from a snapshot keeps its age
+    public Session(short[] clientIds, long created) {
+        if (clientIds.length > MAX_CLIENTS)
+            throw new IllegalArgumentException("Too many clients for one session: " + clientIds.length);
+
+        this.id = nextId.incrementAndGet();
+        this.created = created;
+        this.clientIds = clientIds;
+        this.members = new AtomicInteger(clientIds.length == MAX_CLIENTS ? -1 : (1 << clientIds.length) - 1);
+        this.packets = new LongAdder();
+        this.bytes = new LongAdder();
+        this.shaper = new Shaper();
+        this.lastPacket = created;
+    }
+
+    public long getId() {
+        return id;
+    }
+
+    public long getCreated() {
+        return created;
+    }
+
+    public int getSize() {
+        return clientIds.length;
+    }
+
+    public short getClientId(int slot) {
+        return clientIds[slot];
+    }
+
+    public boolean isMember(int slot) {
+        return (members.get() & (1 << slot)) != 0;
+    }
+
+    public int getMembers() {
+        return members.get();
+    }
+
+    public void leave(int slot) {
+        int cur;
+        do {
+            cur = members.get();
+        } while (!members.compareAndSet(cur, cur & ~(1 << slot)));
+    }
+
+    // members that haven't timed out yet
+    public int getClientCount() {
+        return Integer.bitCount(members.get());
+    }
+
+    public boolean isEmpty() {
+        return members.get() == 0;
+    }
+
+    public Shaper getShaper() {
+        return shaper;
+    }
+
+    public boolean isCaptured() {
+        return captured;
+    }
+
+    public void setCaptured(boolean captured) {
+        this.captured = captured;
+    }
+
+    public long getLastPacket() {
+        return lastPacket;
+    }
+
+    // called for every datagram, only writes when the millisecond changed
+    public void setLastPacket(long now) {
+        if (lastPacket != now)
+            lastPacket = now;
+    }
+
+    public void addTraffic(int length) {
+        packets.increment();
+        bytes.add(length);
+    }
+
+    public long getPackets() {
+        return packets.sum();
+    }
+
+    public long getBytes() {
+        return bytes.sum();
+    }
+}
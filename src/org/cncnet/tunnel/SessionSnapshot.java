@@ -0,0 +1,245 @@
+/*
+ * Copyright (c) 2026 CnCNet tunnel contributors
+ *
+ * Permission to use, copy, modify, and distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+package org.cncnet.tunnel;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The client table kept in a memory mapped file, so a restarted tunnel
+ * can pick up the games that were running. Every client id has a fixed 64
+ * byte record that is written in place when the client is allocated,
+ * bound, active or released. Nothing is ever rewritten as a whole and the
+ * OS writes the pages back on its own, so a crash loses nothing that made
+ * it into the mapping.
+ *
+ * Record layout:
+ *
+ *   0  byte   state, 1 when in use
+ *   1  byte   slot in the session
+ *   2  byte   clients in the session
+ *   3  byte   address length, 0 while unbound
+ *   4  int    port
+ *   8  long   session id
+ *  16  long   session created
+ *  24  long   last packet
+ *  32  short  client ids of the session, 8 of them
+ *  48  byte   address, 16 of them
+ *
+ * Writes to different records come from different threads, but never to
+ * the same field of the same record at once, so absolute puts on the one
+ * shared buffer are enough.
+ */
+public class SessionSnapshot {
+
+    private static final int MAGIC = 0x434e4354;
+    private static final int VERSION = 1;
+    private static final int HEADER = 64;
+    private static final int RECORD = 64;
+    private static final int MAX_MEMBERS = 8;
+    // how often activity is written for a busy client
+    private static final long TOUCH_INTERVAL = 5000;
+
+    private static final int STATE = 0;
+    private static final int SLOT = 1;
+    private static final int COUNT = 2;
+    private static final int ADDRESS_LENGTH = 3;
+    private static final int PORT = 4;
+    private static final int SESSION_ID = 8;
+    private static final int CREATED = 16;
+    private static final int LAST_PACKET = 24;
+    private static final int MEMBERS = 32;
+    private static final int ADDRESS = 48;
+
+    // header: magic, version, then the last time the reaper was alive
+    private static final int HEADER_SAVED = 8;
+
+    private final String path;
+    private final MappedByteBuffer map;
+    private final boolean fresh;
+
+    public SessionSnapshot(String path) throws IOException {
+        this.path = path;
+
+        RandomAccessFile file = new RandomAccessFile(path, "rw");
+        try {
+            long size = HEADER + (long)IdAllocator.SIZE * RECORD;
+            boolean valid = file.length() == size;
+            file.setLength(size);
+            map = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+
+            if (!valid || map.getInt(0) != MAGIC || map.getInt(4) != VERSION) {
+                // unknown or old layout, start over
+                for (int i = 0; i < size; i += 8) {
+                    map.putLong(i, 0);
+                }
+                map.putInt(0, MAGIC);
+                map.putInt(4, VERSION);
+                fresh = true;
+            } else {
+                fresh = false;
+            }
+        } finally {
+            // the mapping stays valid after the file is closed
+            file.close();
+        }
+    }
+
+    public String getPath() {
+        return path;
+    }
+
+    private static int offset(short id) {
+        return HEADER + (id & 0xFFFF) * RECORD;
+    }
+
+    public void allocated(Client client) {
+        Session session = client.getSession();
+        int at = offset(client.getId());
+
+        map.put(at + SLOT, (byte)client.getSlot());
+        map.put(at + COUNT, (byte)Math.min(session.getSize(), MAX_MEMBERS));
+        map.put(at + ADDRESS_LENGTH, (byte)0);
+        map.putInt(at + PORT, 0);
+        map.putLong(at + SESSION_ID, session.getId());
+        map.putLong(at + CREATED, session.getCreated());
+        map.putLong(at + LAST_PACKET, client.getLastPacket());
+        for (int i = 0; i < MAX_MEMBERS; i++) {
+            map.putShort(at + MEMBERS + i * 2, i < session.getSize() ? session.getClientId(i) : 0);
+        }
+
+        // last, so a half written record is never picked up
+        map.put(at + STATE, (byte)1);
+
+        InetSocketAddress address = client.getAddress();
+        if (address != null) {
+            bound(client);
+        }
+    }
+
+    public void bound(Client client) {
+        InetSocketAddress address = client.getAddress();
+        byte[] raw = address.getAddress().getAddress();
+        int at = offset(client.getId());
+
+        for (int i = 0; i < raw.length; i++) {
+            map.put(at + ADDRESS + i, raw[i]);
+        }
+        map.putInt(at + PORT, address.getPort());
+        map.put(at + ADDRESS_LENGTH, (byte)raw.length);
+    }
+
+    // called for every forwarded datagram, only writes every few seconds
+    public void touch(Client client, long now) {
+        if (now - client.getLastSaved() < TOUCH_INTERVAL)
+            return;
+
+        client.setLastSaved(now);
+        map.putLong(offset(client.getId()) + LAST_PACKET, now);
+    }
+
+    public void released(short id) {
+        map.put(offset(id) + STATE, (byte)0);
+    }
+
+    // lets a restart tell if the snapshot is recent enough to be worth loading
+    public void alive(long now) {
+        map.putLong(HEADER_SAVED, now);
+    }
+
+    /**
+     * Rebuilds the clients that were in use and haven't timed out in the
+     * meantime, with their sessions. Restored clients get a full timeout to
+     * reconnect, and their bound addresses are kept so the same players are
+     * let straight back in.
+     */
+    public List<Client> load(long now) {
+        List<Client> ret = new ArrayList<Client>();
+
+        if (fresh || now - map.getLong(HEADER_SAVED) > Client.TIMEOUT)
+            return ret;
+
+        Map<Long, Session> sessions = new HashMap<Long, Session>();
+        Map<Session, Integer> present = new HashMap<Session, Integer>();
+
+        for (int id = 0; id < IdAllocator.SIZE; id++) {
+            int at = offset((short)id);
+
+            if (map.get(at + STATE) != 1)
+                continue;
+
+            // whatever isn't restored is written again by the controller, or not at all
+            map.put(at + STATE, (byte)0);
+
+            if (map.getLong(at + LAST_PACKET) + Client.TIMEOUT < now)
+                continue;
+
+            long sessionId = map.getLong(at + SESSION_ID);
+            Session session = sessions.get(sessionId);
+            if (session == null) {
+                short[] members = new short[map.get(at + COUNT)];
+                for (int i = 0; i < members.length; i++) {
+                    members[i] = map.getShort(at + MEMBERS + i * 2);
+                }
+                session = new Session(members, map.getLong(at + CREATED));
+                sessions.put(sessionId, session);
+            }
+
+            int slot = map.get(at + SLOT);
+            if (slot >= session.getSize() || session.getClientId(slot) != (short)id)
+                continue;
+
+            Client client = new Client((short)id, session, slot);
+            client.setLastPacket(now);
+
+            int length = map.get(at + ADDRESS_LENGTH);
+            if (length == 4 || length == 16) {
+                byte[] raw = new byte[length];
+                for (int i = 0; i < length; i++) {
+                    raw[i] = map.get(at + ADDRESS + i);
+                }
+                try {
+                    client.bindAddress(new InetSocketAddress(InetAddress.getByAddress(raw), map.getInt(at + PORT)));
+                } catch (IOException e) {
+                    // can't happen with a 4 or 16 byte address
+                }
+            }
+
+            ret.add(client);
+            Integer mask = present.get(session);
+            present.put(session, (mask == null ? 0 : mask) | 1 << slot);
+        }
+
+        // members that didn't make it are gone from their sessions
+        for (Session session : sessions.values()) {
+            Integer mask = present.get(session);
+            for (int slot = 0; slot < session.getSize(); slot++) {
+                if (mask == null || (mask & (1 << slot)) == 0)
+                    session.leave(slot);
+            }
+        }
+
+        return ret;
+    }
+}
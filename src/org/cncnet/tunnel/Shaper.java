@@ -0,0 +1,112 @@
+/*
+ * Copyright (c) 2026 CnCNet tunnel contributors
+ *
+ * Permission to use, copy, modify, and distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+package org.cncnet.tunnel;
+
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+
+/**
+ * Packet rate and bandwidth shaping state for one client or session. This is
+ * a token bucket kept as a theoretical arrival time (GCRA), so each limit is
+ * a single long updated with CAS. Workers can share it, and checking a
+ * datagram never allocates.
+ */
+public class Shaper {
+
+    /**
+     * Limits shared by every shaper of one kind, 0 means no limit.
+     */
+    public static class Limit {
+        public static final Limit UNLIMITED = new Limit(0, 0, 0);
+
+        private final long bytesPerSecond;
+        private final long packetsPerSecond;
+        // nanoseconds of traffic a client can send ahead of its rate
+        private final long tolerance;
+        private final long packetCost;
+
+        public Limit(long bytesPerSecond, long packetsPerSecond, long burstMillis) {
+            this.bytesPerSecond = bytesPerSecond;
+            this.packetsPerSecond = packetsPerSecond;
+            this.tolerance = burstMillis * 1000000L;
+            this.packetCost = packetsPerSecond > 0 ? 1000000000L / packetsPerSecond : 0;
+        }
+
+        public long getBytesPerSecond() {
+            return bytesPerSecond;
+        }
+
+        public long getPacketsPerSecond() {
+            return packetsPerSecond;
+        }
+
+        public long getBurst() {
+            return tolerance / 1000000;
+        }
+
+        public boolean isUnlimited() {
+            return bytesPerSecond == 0 && packetsPerSecond == 0;
+        }
+
+        @Override
+        public String toString() {
+            if (isUnlimited())
+                return "unlimited";
+
+            return (bytesPerSecond > 0 ? (bytesPerSecond / 1024) + " KB/s" : "any bandwidth") + ", "
+                + (packetsPerSecond > 0 ? packetsPerSecond + " packets/s" : "any packet rate") + ", "
+                + (tolerance / 1000000) + " ms burst";
+        }
+    }
+
+    private static final AtomicLongFieldUpdater<Shaper> PACKET_TAT = AtomicLongFieldUpdater.newUpdater(Shaper.class, "packetTat");
+    private static final AtomicLongFieldUpdater<Shaper> BYTE_TAT = AtomicLongFieldUpdater.newUpdater(Shaper.class, "byteTat");
+
+    private volatile long packetTat;
+    private volatile long byteTat;
+
+    public Shaper() {
+        // nanoTime can be negative, start out with a full bucket from now
+        packetTat = byteTat = System.nanoTime();
+    }
+
+    /**
+     * Takes a datagram of the given length from both buckets, returns false
+     * if it goes over either limit. A datagram that passes the packet rate
+     * but not the bandwidth limit still uses up its packet slot.
+     */
+    public boolean admit(Limit limit, int length, long nanos) {
+        if (limit.packetCost > 0 && !take(PACKET_TAT, limit.packetCost, limit.tolerance, nanos))
+            return false;
+
+        if (limit.bytesPerSecond > 0 && !take(BYTE_TAT, length * 1000000000L / limit.bytesPerSecond, limit.tolerance, nanos))
+            return false;
+
+        return true;
+    }
+
+    private boolean take(AtomicLongFieldUpdater<Shaper> updater, long cost, long tolerance, long now) {
+        while (true) {
+            long tat = updater.get(this);
+            long start = tat - now > 0 ? tat : now;
+
+            if (start - now > tolerance)
+                return false;
+
+            if (updater.compareAndSet(this, tat, start + cost))
+                return true;
+        }
+    }
+}
@@ -0,0 +1,142 @@
+/*
+ * Copyright (c) 2026 CnCNet tunnel contributors
+ *
+ * Permission to use, copy, modify, and distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+package org.cncnet.tunnel;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+
+/**
+ * Early drop filter for sources that keep sending datagrams we can't use:
+ * unknown client ids, spoofed ids or runts. Each source gets a slot in a
+ * fixed direct mapped table that counts its junk. A source that goes over
+ * the threshold within one window is blackholed, and its datagrams are
+ * dropped before the header is even read.
+ *
+ * A blackholed source is still let through once a second. If that datagram
+ * turns out to be from a real client, for example a player starting a new
+ * game from the same port, the block is lifted right away.
+ *
+ * Not thread safe, every worker has its own.
+ */
+public class SourceFilter {
+
+    private static final int SIZE = 4096;
+    private static final long WINDOW = 10000;
+    private static final long BLOCK = 60000;
+    private static final long PROBE = 1000;
+
+    private final int threshold;
+    private final int[] addresses = new int[SIZE];
+    private final int[] ports = new int[SIZE];
+    private final int[] counts = new int[SIZE];
+    private final long[] windowStart = new long[SIZE];
+    private final long[] blockedUntil = new long[SIZE];
+    private final long[] lastProbe = new long[SIZE];
+    // slots with a block set, lets forwarded datagrams skip clearing when there are none
+    private int blocked = 0;
+
+    /**
+     * @param threshold junk datagrams per window before a source is blocked, 0 disables the filter
+     */
+    public SourceFilter(int threshold) {
+        this.threshold = threshold;
+    }
+
+    private static int slot(int address, int port) {
+        int h = address * 0x9E3779B9 + port;
+        return (h ^ (h >>> 16)) & (SIZE - 1);
+    }
+
+    // true if the datagram should be dropped without looking at it
+    public boolean isBlocked(InetSocketAddress from, long now) {
+        if (blocked == 0)
+            return false;
+
+        InetAddress addr = from.getAddress();
+        int address = addr.hashCode();
+        int port = from.getPort();
+        int slot = slot(address, port);
+
+        if (blockedUntil[slot] == 0 || addresses[slot] != address || ports[slot] != port)
+            return false;
+
+        if (now >= blockedUntil[slot]) {
+            unblock(slot);
+            return false;
+        }
+
+        if (now - lastProbe[slot] >= PROBE) {
+            lastProbe[slot] = now;
+            return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * Counts a junk datagram against its source. Returns true if the source
+     * was blocked because of it.
+     */
+    public boolean recordJunk(InetSocketAddress from, long now) {
+        if (threshold == 0)
+            return false;
+
+        int address = from.getAddress().hashCode();
+        int port = from.getPort();
+        int slot = slot(address, port);
+
+        if (addresses[slot] != address || ports[slot] != port) {
+            // someone else had the slot, the newer source takes it over
+            if (blockedUntil[slot] != 0)
+                unblock(slot);
+            addresses[slot] = address;
+            ports[slot] = port;
+            counts[slot] = 0;
+            windowStart[slot] = now;
+        } else if (now - windowStart[slot] >= WINDOW) {
+            counts[slot] = 0;
+            windowStart[slot] = now;
+        }
+
+        if (++counts[slot] < threshold || blockedUntil[slot] != 0)
+            return false;
+
+        blockedUntil[slot] = now + BLOCK;
+        lastProbe[slot] = now;
+        blocked++;
+        Metrics.sourcesBlackholed.increment();
+        return true;
+    }
+
+    // a datagram from this source was forwarded, it is a real client
+    public void recordValid(InetSocketAddress from) {
+        if (blocked == 0)
+            return;
+
+        int address = from.getAddress().hashCode();
+        int port = from.getPort();
+        int slot = slot(address, port);
+
+        if (blockedUntil[slot] != 0 && addresses[slot] == address && ports[slot] == port)
+            unblock(slot);
+    }
+
+    private void unblock(int slot) {
+        blockedUntil[slot] = 0;
+        counts[slot] = 0;
+        blocked--;
+    }
+}
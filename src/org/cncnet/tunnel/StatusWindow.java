@@ -18,6 +18,8 @@ package org.cncnet.tunnel;
 import java.awt.BorderLayout;
 import java.awt.Dimension;
 import java.awt.Font;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
 import java.awt.event.WindowEvent;
 import java.awt.event.WindowListener;
 import javax.swing.BorderFactory;
@@ -29,6 +31,7 @@ import javax.swing.JPanel;
 import javax.swing.JScrollPane;
 import javax.swing.JTextArea;
 import javax.swing.SwingUtilities;
+import javax.swing.Timer;
 import javax.swing.border.EmptyBorder;
 
 /**
@@ -37,6 +40,15 @@ import javax.swing.border.EmptyBorder;
  */
 public class StatusWindow extends JFrame implements WindowListener {
 
+    // how many of the latest log lines are kept and shown
+    private static final int LOG_LINES = 1000;
+    private static final int FLUSH_INTERVAL = 250;
+
+    private final String[] lines = new String[LOG_LINES];
+    private int first = 0;
+    private int count = 0;
+    private boolean dirty = false;
+
     private JTextArea logArea;
     private JLabel statusLabel;
     private volatile boolean closing = false;
@@ -75,18 +87,44 @@ public class StatusWindow extends JFrame implements WindowListener {
         this.add(mainPanel);
         this.setSize(600, 200);
         this.addWindowListener(this);
+
+        new Timer(FLUSH_INTERVAL, new ActionListener() {
+            public void actionPerformed(ActionEvent e) {
+                flush();
+            }
+        }).start();
     }
 
-    public void log(final String str) {
-        SwingUtilities.invokeLater(new Runnable() {
-            public void run() {
-                if (logArea.getText().length() == 0) {
-                    logArea.append(str);
-                } else {
-                    logArea.append("\n" + str);
-                }
+    public void log(String str) {
+        synchronized (lines) {
+            if (count < LOG_LINES) {
+                lines[(first + count++) % LOG_LINES] = str;
+            } else {
+                lines[first] = str;
+                first = (first + 1) % LOG_LINES;
             }
-        });
+            dirty = true;
+        }
+    }
+
+    // runs on the EDT, replaces the text with the current contents of the ring
+    private void flush() {
+        StringBuilder text = new StringBuilder();
+
+        synchronized (lines) {
+            if (!dirty)
+                return;
+
+            for (int i = 0; i < count; i++) {
+                if (i > 0)
+                    text.append('\n');
+                text.append(lines[(first + i) % LOG_LINES]);
+            }
+            dirty = false;
+        }
+
+        logArea.setText(text.toString());
+        logArea.setCaretPosition(text.length());
     }
 
     public void status(final String str) {
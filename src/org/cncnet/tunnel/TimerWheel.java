@@ -0,0 +1,97 @@
+/*
+ * Copyright (c) 2026 CnCNet tunnel contributors
+ *
+ * Permission to use, copy, modify, and distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+package org.cncnet.tunnel;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Hashed timer wheel for expiring clients. Entries are put in the bucket of
+ * their deadline and each tick only looks at the bucket that came due.
+ * Deadlines are read again when the bucket is visited, so an entry that was
+ * touched in the meantime just moves to a later bucket instead of being
+ * rescheduled on every touch.
+ *
+ * Entries can be scheduled from any thread, advance() is only called from
+ * the reaper thread.
+ */
+public class TimerWheel<T extends TimerWheel.Timeout> {
+
+    public interface Timeout {
+        long getDeadline();
+    }
+
+    private final long tick;
+    private final List<List<T>> buckets;
+    private final ConcurrentLinkedQueue<T> incoming;
+    private List<T> spare;
+    private long current;
+
+    public TimerWheel(long tick, int size, long now) {
+        this.tick = tick;
+        this.buckets = new ArrayList<List<T>>(size);
+        for (int i = 0; i < size; i++) {
+            buckets.add(new ArrayList<T>());
+        }
+        this.incoming = new ConcurrentLinkedQueue<T>();
+        this.spare = new ArrayList<T>();
+        this.current = now / tick;
+    }
+
+    public void schedule(T timeout) {
+        incoming.offer(timeout);
+    }
+
+    /**
+     * Processes every tick up to now, adding the entries whose deadline has
+     * passed to expired.
+     */
+    public void advance(long now, List<T> expired) {
+        T timeout;
+        while ((timeout = incoming.poll()) != null) {
+            place(timeout, current);
+        }
+
+        long target = now / tick;
+
+        for (; current <= target; current++) {
+            int index = (int)(current % buckets.size());
+            List<T> bucket = buckets.get(index);
+            if (bucket.isEmpty())
+                continue;
+
+            buckets.set(index, spare);
+
+            for (int i = 0; i < bucket.size(); i++) {
+                T t = bucket.get(i);
+                if (t.getDeadline() <= now) {
+                    expired.add(t);
+                } else {
+                    place(t, current + 1);
+                }
+            }
+
+            bucket.clear();
+            spare = bucket;
+        }
+    }
+
+    private void place(T timeout, long earliest) {
+        long slot = Math.max(timeout.getDeadline() / tick, earliest);
+        buckets.get((int)(slot % buckets.size())).add(timeout);
+    }
+}
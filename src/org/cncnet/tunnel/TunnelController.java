@@ -17,24 +17,16 @@ package org.cncnet.tunnel;
 
 import com.sun.net.httpserver.HttpExchange;
 import com.sun.net.httpserver.HttpHandler;
-import java.io.FileNotFoundException;
+import java.io.File;
 import java.io.IOException;
 import java.io.OutputStream;
-import java.net.HttpURLConnection;
+import java.io.UnsupportedEncodingException;
 import java.net.InetAddress;
-import java.net.MalformedURLException;
-import java.net.URL;
 import java.net.URLDecoder;
-import java.net.URLEncoder;
 import java.util.ArrayList;
-import java.util.Collections;
-import java.util.Iterator;
 import java.util.List;
-import java.util.Map;
-import java.util.Queue;
-import java.util.Set;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  *
@@ -42,65 +34,132 @@ import java.util.concurrent.ConcurrentLinkedQueue;
  */
 public class TunnelController implements HttpHandler, Runnable {
 
-    private class Lock {
-        public long firstRequest;
-        public int games;
+    // how often the reaper wakes up to expire clients
+    private static final long TICK = 1000;
 
-        public Lock(long firstRequest) {
-            this.firstRequest = firstRequest;
-        }
+    private ClientTable clients;
 
-        public void poke() {
-            this.games++;
-        }
+    private int port;
+    // the command line settings, a config file is applied on top of these
+    final private Config base;
+    private volatile Config config;
+    private String configFile = null;
+    private long configModified = 0;
+    private IdAllocator ids;
+    private final AtomicInteger reservedSlots = new AtomicInteger();
+    // running games by id, so nothing has to walk the client table to find them
+    private final ConcurrentSkipListMap<Long, Session> sessions = new ConcurrentSkipListMap<Long, Session>();
+    private volatile boolean maintenance = false;
+    private volatile RateLimiter limiter;
+    final private TimerWheel<Client> clientTimeouts;
+    final private MasterClient masterClient;
+    private SessionSnapshot snapshot = null;
+    private PacketCapture capture = null;
+    private final long started = System.currentTimeMillis();
+    // the JSON status, rebuilt by the reaper every tick and never changed after
+    private volatile byte[] status;
+
+    public TunnelController(int port, Config config) {
+        clients = new ClientTable();
+
+        this.port = port;
+        this.base = config;
+        this.config = config;
+        this.ids = new IdAllocator();
+        this.limiter = new RateLimiter(config.getIpLimit(), config.getIpRate());
+        this.clientTimeouts = new TimerWheel<Client>(TICK, 64, System.currentTimeMillis());
+        this.masterClient = new MasterClient(this, port);
+        this.status = buildStatus(started, 0, 0);
     }
 
-    private Map<Short, Client> clients;
+    public Client getClient(short clientId) {
+        return clients.get(clientId);
+    }
 
-    private String name;
-    private String password;
-    private int maxclients;
-    private int port;
-    private String master;
-    private String masterpw = null;
-    private int iplimit;
-    private Queue<Short> pool;
-    private volatile boolean maintenance = false;
-    final private ConcurrentHashMap<String, Lock> locks;
+    public int getClientCount() {
+        return clients.size();
+    }
 
-    public TunnelController(String name, String password, int port, int maxclients, String master, String masterpw, int iplimit) {
-        clients = new ConcurrentHashMap<Short, Client>();
+    public Config getConfig() {
+        return config;
+    }
 
-        this.name = name;
-        this.password = password;
-        this.maxclients = maxclients;
-        this.port = port;
-        this.master = master;
-        this.masterpw = masterpw;
-        this.iplimit = iplimit;
-        this.pool = new ConcurrentLinkedQueue<Short>();
-        this.locks = new ConcurrentHashMap<String, Lock>();
-
-        long start = System.currentTimeMillis();
-        ArrayList<Short> allShort = new ArrayList<Short>();
-        for (short i = Short.MIN_VALUE; i < Short.MAX_VALUE; i++) {
-            allShort.add(i);
+    public boolean isMaintenance() {
+        return maintenance;
+    }
+
+    public SessionSnapshot getSnapshot() {
+        return snapshot;
+    }
+
+    public PacketCapture getCapture() {
+        return capture;
+    }
+
+    // the forwarders pick it up when they are created
+    public void setCapture(PacketCapture capture) {
+        this.capture = capture;
+    }
+
+    /**
+     * Starts keeping the client table in the snapshot, after taking back the
+     * clients it had from the previous run. Has to be done before the
+     * forwarders and the HTTP server are up. Returns the restored clients.
+     */
+    public int restore(SessionSnapshot snapshot) {
+        long now = System.currentTimeMillis();
+        List<Client> restored = snapshot.load(now);
+
+        for (Client client : restored) {
+            ids.reserve(client.getId() & 0xFFFF);
+            reservedSlots.incrementAndGet();
+            clients.put(client);
+            clientTimeouts.schedule(client);
+            snapshot.allocated(client);
+            client.getSession().setLastPacket(now);
+            sessions.put(client.getSession().getId(), client.getSession());
         }
-        Collections.shuffle(allShort);
-        pool.addAll(allShort);
 
-        Main.log("TunnelController: Took " + (System.currentTimeMillis() - start) + "ms to initialize pool.");
+        snapshot.alive(now);
+        this.snapshot = snapshot;
+        return restored.size();
     }
 
-    public Client getClient(Short clientId) {
-        return clients.get(clientId);
+    /**
+     * Applies the config file on top of the command line settings and keeps
+     * an eye on it, it is read again whenever it changes.
+     */
+    public String setConfigFile(String path) throws IOException {
+        configFile = path;
+        return reloadConfig();
+    }
+
+    // returns what changed, throws if the file can't be used and the old config stays
+    public synchronized String reloadConfig() throws IOException {
+        if (configFile == null)
+            throw new IOException("No config file to reload.");
+
+        configModified = new File(configFile).lastModified();
+        Config next = Config.load(configFile, base);
+        Config old = config;
+
+        if (next.getIpLimit() != old.getIpLimit() || next.getIpRate() != old.getIpRate()) {
+            // buckets are cheap to lose, hosts just get a fresh burst
+            limiter = new RateLimiter(next.getIpLimit(), next.getIpRate());
+        }
+
+        config = next;
+        return next.describeChanges(old);
     }
 
     private void handleRequest(HttpExchange t) throws IOException {
         String params = t.getRequestURI().getQuery();
         List<InetAddress> addresses = new ArrayList<InetAddress>();
-        String requestAddress = t.getRemoteAddress().getAddress().getHostAddress();
+        InetAddress requestAddress = t.getRemoteAddress().getAddress();
         int requestedAmount = 0;
+        Config config = this.config;
+        RateLimiter limiter = this.limiter;
+        String password = config.getPassword();
         boolean pwOk = (password == null);
 
         if (params == null)
@@ -127,6 +186,7 @@ public class TunnelController implements HttpHandler, Runnable {
         if (!pwOk) {
             // Unauthorized
             Main.log("Request was unauthorized.");
+            Metrics.Rejection.UNAUTHORIZED.count.increment();
             t.sendResponseHeaders(401, 0);
             t.getResponseBody().close();
             return;
@@ -135,6 +195,7 @@ public class TunnelController implements HttpHandler, Runnable {
         if (requestedAmount < 2 || requestedAmount > 8) {
             // Bad Request
             Main.log("Request had invalid requested amount (" + requestedAmount + ").");
+            Metrics.Rejection.INVALID.count.increment();
             t.sendResponseHeaders(400, 0);
             t.getResponseBody().close();
             return;
@@ -143,98 +204,307 @@ public class TunnelController implements HttpHandler, Runnable {
         if (maintenance) {
             // Service Unavailable
             Main.log("Request to start a new game was denied because of maintenance.");
+            Metrics.Rejection.MAINTENANCE.count.increment();
             t.sendResponseHeaders(503, 0);
             t.getResponseBody().close();
             return;
         }
 
-        Lock curLock = locks.get(requestAddress);
-        // lock the request ip out until this router is collected
-        if (iplimit > 0 && curLock != null && curLock.games >= iplimit) {
+        if (config.getIpLimit() > 0 && !limiter.tryAcquire(requestAddress, System.currentTimeMillis())) {
             // Too Many Requests
-            Main.log("Same address tried to request more than " + iplimit + " routers.");
+            Main.log("Address " + requestAddress.getHostAddress() + " is starting games too fast.");
+            Metrics.Rejection.RATE_LIMITED.count.increment();
             t.sendResponseHeaders(429, 0);
             t.getResponseBody().close();
             return;
         }
 
-        StringBuilder ret = new StringBuilder();
+        Session session = reserve(requestedAmount);
 
-        synchronized (clients) {
-            if (requestedAmount + clients.size() > maxclients) {
-                // Service Unavailable
-                Main.log("Request wanted more than we could provide.");
-                t.sendResponseHeaders(503, 0);
-                t.getResponseBody().close();
-                return;
+        if (session == null) {
+            if (config.getIpLimit() > 0) {
+                limiter.refund(requestAddress, System.currentTimeMillis());
             }
+            // Service Unavailable
+            Main.log("Request wanted more than we could provide.");
+            Metrics.Rejection.FULL.count.increment();
+            t.sendResponseHeaders(503, 0);
+            t.getResponseBody().close();
+            return;
+        }
 
-            ret.append("[");
+        Main.log("Session " + session.getId() + " created.");
 
-            // for thread safety, we just try to reserve slots (actually we are
-            // double synchronized right now, makes little sense)
-            ArrayList<Short> reserved = new ArrayList<Short>();
-            for (int i = 0; i < requestedAmount; i++) {
-                Short clientId = pool.poll();
-                if (clientId != null) {
-                    reserved.add(clientId);
-                }
+        StringBuilder ret = new StringBuilder();
+        ret.append("[");
+        for (int slot = 0; slot < session.getSize(); slot++) {
+            short clientId = session.getClientId(slot);
+            Main.log("Client " + clientId + " allocated.");
+            if (slot > 0) {
+                ret.append(",");
             }
+            ret.append(clientId);
+        }
+        ret.append("]");
 
-            if (reserved.size() == requestedAmount) {
-                boolean frist = true;
-                for (Short clientId : reserved) {
-                    clients.put(clientId, new Client(clientId, reserved));
-                    Main.log("Client " + clientId + " allocated.");
-                    if (frist) {
-                        frist = false;
-                    } else {
-                        ret.append(",");
-                    }
-                    ret.append(clientId);
-                }
-            } else {
+        t.sendResponseHeaders(200, ret.length());
+        OutputStream os = t.getResponseBody();
+        os.write(ret.toString().getBytes());
+        os.close();
+    }
+
+    /**
+     * Reserves capacity and client ids for a new session, all or nothing.
+     * Concurrent requests only meet at the capacity counter and the id
+     * bitmap, both updated with CAS. Returns null if we can't fit it.
+     */
+    Session reserve(int amount) {
+        int cur;
+        do {
+            cur = reservedSlots.get();
+            if (cur + amount > config.getMaxClients())
+                return null;
+        } while (!reservedSlots.compareAndSet(cur, cur + amount));
+
+        short[] reserved = new short[amount];
+        for (int i = 0; i < amount; i++) {
+            int clientId = ids.allocate();
+            if (clientId < 0) {
                 // return our reservations if any
-                for (Short clientId : reserved) {
-                    pool.add(clientId);
+                for (int j = 0; j < i; j++) {
+                    ids.release(reserved[j] & 0xFFFF);
                 }
-                // Service Unavailable
-                Main.log("Request wanted more than we could provide and we also exhausted our queue.");
-                t.sendResponseHeaders(503, 0);
-                t.getResponseBody().close();
-                return;
+                reservedSlots.addAndGet(-amount);
+                Main.log("Client id space exhausted.");
+                return null;
             }
-            ret.append("]");
+            reserved[i] = (short)clientId;
         }
 
-        if (iplimit > 0) {
-            synchronized (locks) {
-                long now = System.currentTimeMillis();
-                Lock l = locks.get(requestAddress);
-                if (l == null) {
-                    l = new Lock(now);
-                }
+        Session session = new Session(reserved);
 
-                l.poke();
-                locks.put(requestAddress, l);
+        for (int slot = 0; slot < amount; slot++) {
+            Client client = new Client(reserved[slot], session, slot);
+            clients.put(client);
+            clientTimeouts.schedule(client);
+            if (snapshot != null) {
+                snapshot.allocated(client);
             }
         }
 
-        t.sendResponseHeaders(200, ret.length());
-        OutputStream os = t.getResponseBody();
-        os.write(ret.toString().getBytes());
-        os.close();
+        sessions.put(session.getId(), session);
+        Metrics.sessionsCreated.increment();
+        Metrics.clientsAllocated.add(amount);
+
+        return session;
     }
 
     private void handleStatus(HttpExchange t) throws IOException {
-        String response = (maxclients - clients.size()) + " slots free.\n" + clients.size() + " slots in use.\n";
-        Main.log("Response: " + response);
+        String params = t.getRequestURI().getQuery();
+
+        if (params != null && params.contains("format=json")) {
+            byte[] response = status;
+            t.getResponseHeaders().set("Content-Type", "application/json");
+            t.sendResponseHeaders(200, response.length);
+            OutputStream os = t.getResponseBody();
+            os.write(response);
+            os.close();
+            return;
+        }
+
+        String response = (config.getMaxClients() - clients.size()) + " slots free.\n" + clients.size() + " slots in use.\n";
         t.sendResponseHeaders(200, response.length());
         OutputStream os = t.getResponseBody();
         os.write(response.getBytes());
         os.close();
     }
 
+    /**
+     * Serializes what /status?format=json shows: the slots, the forwarding
+     * rates over the last tick and every running game. Ages and idle times
+     * are in seconds.
+     */
+    private byte[] buildStatus(long now, long packetRate, long byteRate) {
+        Config config = this.config;
+        int used = clients.size();
+        StringBuilder out = new StringBuilder(4096);
+        out.append("{\"name\":");
+        quote(out, config.getName());
+        out.append(",\"maintenance\":").append(maintenance);
+        out.append(",\"uptime\":").append((now - started) / 1000);
+        out.append(",\"updated\":").append(now);
+        out.append(",\"slots\":{\"free\":").append(Math.max(config.getMaxClients() - used, 0))
+            .append(",\"used\":").append(used)
+            .append(",\"max\":").append(config.getMaxClients()).append('}');
+        out.append(",\"rates\":{\"packets\":").append(packetRate)
+            .append(",\"bytes\":").append(byteRate).append('}');
+        out.append(",\"totals\":{\"packets\":").append(Metrics.packetsForwarded.sum())
+            .append(",\"bytes\":").append(Metrics.bytesForwarded.sum())
+            .append(",\"sessions\":").append(Metrics.sessionsCreated.sum()).append('}');
+        out.append(",\"sessions\":[");
+
+        boolean first = true;
+        for (Session session : sessions.values()) {
+            if (!first)
+                out.append(',');
+            first = false;
+
+            out.append("{\"id\":").append(session.getId())
+                .append(",\"clients\":").append(session.getClientCount())
+                .append(",\"size\":").append(session.getSize())
+                .append(",\"packets\":").append(session.getPackets())
+                .append(",\"bytes\":").append(session.getBytes())
+                .append(",\"age\":").append(Math.max(now - session.getCreated(), 0) / 1000)
+                .append(",\"idle\":").append(Math.max(now - session.getLastPacket(), 0) / 1000)
+                .append('}');
+        }
+
+        out.append("]}\n");
+
+        try {
+            return out.toString().getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static void quote(StringBuilder out, String value) {
+        out.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                out.append('\\').append(c);
+            } else if (c < 0x20) {
+                out.append(String.format("\\u%04x", (int)c));
+            } else {
+                out.append(c);
+            }
+        }
+        out.append('"');
+    }
+
+    private void handleMetrics(HttpExchange t) throws IOException {
+        StringBuilder out = new StringBuilder();
+
+        Metrics.gauge(out, "clients", "Client slots in use.", clients.size());
+        Metrics.gauge(out, "clients_max", "Client slots available in total.", config.getMaxClients());
+        Metrics.gauge(out, "maintenance", "1 when no new games are accepted.", maintenance ? 1 : 0);
+        Metrics.gauge(out, "ratelimit_addresses", "Addresses tracked by the host rate limiter.", limiter.size());
+        Metrics.counter(out, "ratelimit_evictions_total", "Addresses pushed out of the host rate limiter.", limiter.getEvictions());
+        Metrics.write(out);
+
+        byte[] response = out.toString().getBytes("UTF-8");
+        t.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4");
+        t.sendResponseHeaders(200, response.length);
+        OutputStream os = t.getResponseBody();
+        os.write(response);
+        os.close();
+    }
+
+    private void handleReload(HttpExchange t) throws IOException {
+        String response;
+        int code = 200;
+
+        try {
+            response = "Configuration reloaded: " + reloadConfig() + ".";
+        } catch (IOException e) {
+            response = "Configuration not reloaded: " + e.getMessage();
+            code = 500;
+        }
+
+        Main.log(response);
+        byte[] body = (response + "\n").getBytes("UTF-8");
+        t.sendResponseHeaders(code, body.length);
+        OutputStream os = t.getResponseBody();
+        os.write(body);
+        os.close();
+    }
+
+    private void handleCapture(HttpExchange t) throws IOException {
+        String params = t.getRequestURI().getQuery();
+        boolean on = true;
+        String client = null;
+        String session = null;
+        String all = null;
+        boolean pcap = false;
+
+        if (params == null)
+            params = "";
+
+        for (String pair : params.split("&")) {
+            String kv[] = pair.split("=");
+            if (kv.length != 2)
+                continue;
+
+            if (kv[0].equals("on")) {
+                on = !kv[1].equals("0");
+            } else if (kv[0].equals("client")) {
+                client = kv[1];
+            } else if (kv[0].equals("session")) {
+                session = kv[1];
+            } else if (kv[0].equals("all")) {
+                all = kv[1];
+            } else if (kv[0].equals("format")) {
+                pcap = kv[1].equals("pcap");
+            }
+        }
+
+        if (pcap) {
+            t.getResponseHeaders().set("Content-Type", "application/vnd.tcpdump.pcap");
+            t.getResponseHeaders().set("Content-Disposition", "attachment; filename=\"tunnel.pcap\"");
+            t.sendResponseHeaders(200, 0);
+            OutputStream os = t.getResponseBody();
+            capture.export(os);
+            os.close();
+            return;
+        }
+
+        String response;
+        int code = 200;
+
+        try {
+            if (client != null) {
+                // only clients that are allocated, the reaper clears the bit when they time out
+                short id = Short.parseShort(client);
+                if (getClient(id) != null) {
+                    capture.setClient(id, on);
+                    // timed out in the meantime, the reaper may have cleared it before we set it
+                    if (getClient(id) == null)
+                        capture.setClient(id, false);
+                    response = "Capture " + (on ? "started" : "stopped") + " for client " + client + ".";
+                } else {
+                    response = "No such client " + client + ".";
+                    code = 404;
+                }
+            } else if (session != null) {
+                Session s = sessions.get(Long.parseLong(session));
+                if (s != null) {
+                    capture.setSession(s, on);
+                    response = "Capture " + (on ? "started" : "stopped") + " for session " + session + ".";
+                } else {
+                    response = "No such session " + session + ".";
+                    code = 404;
+                }
+            } else if (all != null) {
+                capture.setAll(!all.equals("0"));
+                response = "Capture of all traffic " + (capture.isCapturingAll() ? "started" : "stopped") + ".";
+            } else {
+                response = "Capturing " + (capture.isCapturingAll() ? "all traffic" : capture.getEnabled() + " clients and sessions") + ", "
+                    + capture.getRecorded() + " datagrams recorded into " + capture.getSlots() + " slots of " + capture.getSnap() + " bytes.";
+            }
+        } catch (NumberFormatException e) {
+            response = "Invalid id: " + e.getMessage();
+            code = 400;
+        }
+
+        Main.log(response);
+        byte[] body = (response + "\n").getBytes("UTF-8");
+        t.sendResponseHeaders(code, body.length);
+        OutputStream os = t.getResponseBody();
+        os.write(body);
+        os.close();
+    }
+
     private void handleMaintenance(HttpExchange t) throws IOException {
         setMaintenance();
         t.sendResponseHeaders(200, 0);
@@ -245,34 +515,7 @@ public class TunnelController implements HttpHandler, Runnable {
         maintenance = true;
         Main.log("Maintenance mode enabled, no new games can be started.\n");
 
-        if (master != null) {
-            try {
-                URL url = new URL(
-                    master + "?version=2"
-                    + "&name=" + URLEncoder.encode(name, "US-ASCII")
-                    + "&password=" + (password == null ? "0" : "1")
-                    + "&port=" + port
-                    + "&clients=" + clients.size()
-                    + "&maxclients=" + maxclients
-                    + (masterpw != null ? "&masterpw=" + URLEncoder.encode(masterpw, "US-ASCII") : "")
-                    + "&maintenance=1"
-                );
-                HttpURLConnection con = (HttpURLConnection)url.openConnection();
-                con.setRequestMethod("GET");
-                con.setConnectTimeout(5000);
-                con.setReadTimeout(5000);
-                con.connect();
-                con.getInputStream().close();
-                con.disconnect();
-                Main.log("Master notified of maintenance.\n");
-            } catch (FileNotFoundException e) {
-                Main.log("Master server reported error 404.");
-            } catch (MalformedURLException e) {
-                Main.log("Failed to send heartbeat: " + e.toString());
-            } catch (IOException e) {
-                Main.log("Failed to send heartbeat: " + e.toString());
-            }
-        }
+        masterClient.notifyMaintenance();
     }
 
     @Override
@@ -280,15 +523,24 @@ public class TunnelController implements HttpHandler, Runnable {
         String uri = t.getRequestURI().toString();
         t.getRequestBody().close();
 
-        Main.log("HTTPRequest: " + uri);
+        // monitoring polls these all the time, logging each would flood the log
+        if (!uri.startsWith("/status") && !uri.startsWith("/metrics")) {
+            Main.log("HTTPRequest: " + uri);
+        }
 
         try {
             if (uri.startsWith("/request")) {
                 handleRequest(t);
             } else if (uri.startsWith("/status")) {
                 handleStatus(t);
+            } else if (uri.startsWith("/metrics")) {
+                handleMetrics(t);
             } else if (uri.startsWith("/maintenance/")) {
                 handleMaintenance(t);
+            } else if (uri.startsWith("/reload/")) {
+                handleReload(t);
+            } else if (uri.startsWith("/capture/") && capture != null) {
+                handleCapture(t);
             } else {
                 t.sendResponseHeaders(400, 0);
             }
@@ -305,13 +557,18 @@ public class TunnelController implements HttpHandler, Runnable {
     @Override
     public void run() {
 
-        long lastHeartbeat = 0;
+        long lastStats = System.currentTimeMillis();
+        long lastTick = lastStats;
+        long lastPackets = Metrics.packetsForwarded.sum();
+        long lastBytes = Metrics.bytesForwarded.sum();
 
         Main.status("Connecting...");
 
         Main.log("TunnelController started.");
 
-        boolean connected = false;
+        masterClient.start();
+
+        List<Client> expiredClients = new ArrayList<Client>();
 
         while (true) {
 
@@ -319,76 +576,84 @@ public class TunnelController implements HttpHandler, Runnable {
 
             if (maintenance && clients.isEmpty()) {
                 Main.log("Tunnel empty, doing maintenance quit.");
+                masterClient.awaitMaintenance();
                 System.exit(0);
                 return;
             }
 
-            if (lastHeartbeat + 60000 < now && master != null && !maintenance) {
-                Main.log("Sending a heartbeat to master server.");
+            expiredClients.clear();
+            clientTimeouts.advance(now, expiredClients);
 
-                connected = false;
-                try {
-                    URL url = new URL(
-                        master + "?version=2"
-                        + "&name=" + URLEncoder.encode(name, "US-ASCII")
-                        + "&password=" + (password == null ? "0" : "1")
-                        + "&port=" + port
-                        + "&clients=" + clients.size()
-                        + "&maxclients=" + maxclients
-                        + (masterpw != null ? "&masterpw=" + URLEncoder.encode(masterpw, "US-ASCII") : "")
-                    );
-                    HttpURLConnection con = (HttpURLConnection)url.openConnection();
-                    con.setRequestMethod("GET");
-                    con.setConnectTimeout(5000);
-                    con.setReadTimeout(5000);
-                    con.connect();
-                    con.getInputStream().close();
-                    con.disconnect();
-                    connected = true;
-                } catch (FileNotFoundException e) {
-                    Main.log("Master server reported error 404.");
-                } catch (MalformedURLException e) {
-                    Main.log("Failed to send heartbeat: " + e.toString());
-                } catch (IOException e) {
-                    Main.log("Failed to send heartbeat: " + e.toString());
+            for (Client client : expiredClients) {
+                if (clients.remove(client)) {
+                    Main.log("Client " + client.getId() +  " timed out.");
+                    if (snapshot != null) {
+                        snapshot.released(client.getId());
+                    }
+                    if (capture != null) {
+                        capture.setClient(client.getId(), false);
+                    }
+                    ids.release(client.getId() & 0xFFFF);
+                    reservedSlots.decrementAndGet();
+                    Metrics.clientsTimedOut.increment();
+
+                    Session session = client.getSession();
+                    session.leave(client.getSlot());
+                    if (session.isEmpty()) {
+                        sessions.remove(session.getId());
+                        if (capture != null) {
+                            capture.setSession(session, false);
+                        }
+                        Main.log("Session " + session.getId() + " ended, " + session.getPackets() + " packets and "
+                            + session.getBytes() + " bytes forwarded in " + ((now - session.getCreated()) / 1000) + " seconds.");
+                    }
                 }
-
-                lastHeartbeat = now;
             }
 
-            Set<Map.Entry<Short, Client>> set = clients.entrySet();
-
-            for (Iterator<Map.Entry<Short, Client>> i = set.iterator(); i.hasNext();) {
-                Map.Entry<Short, Client> e = i.next();
-                Short id = e.getKey();
-                Client client = e.getValue();
+            if (snapshot != null) {
+                snapshot.alive(now);
+            }
 
-                if (client.getLastPacket() + 60000 < now) {
-                    Main.log("Client " + e.getKey() +  " timed out.");
-                    i.remove();
-                    pool.add(id);
+            if (configFile != null && new File(configFile).lastModified() != configModified) {
+                try {
+                    Main.log("Configuration file changed, reloaded: " + reloadConfig() + ".");
+                } catch (IOException e) {
+                    Main.log("Configuration file changed but can't be used: " + e.getMessage());
                 }
             }
 
-            Set<Map.Entry<String, Lock>> lset = locks.entrySet();
-
-            for (Iterator<Map.Entry<String, Lock>> i = lset.iterator(); i.hasNext();) {
-                Map.Entry<String, Lock> e = i.next();
-                Lock l = e.getValue();
+            if (lastStats + 60000 < now && Main.forwarders != null) {
+                for (Forwarder f : Main.forwarders) {
+                    Main.log("Forwarder " + f.getIndex() + ": " + f.getPackets() + " packets in " + f.getWakeups() + " wakeups, "
+                        + f.getBudgetExhausted() + " hit the batch limit.");
+                }
 
-                if (l.firstRequest + 60000 < now) {
-                    Main.log("Lock " + e.getKey() +  " released.");
-                    i.remove();
+                HttpExecutor http = Main.httpExecutor;
+                if (http != null) {
+                    long requests = Math.max(http.getRequests(), 1);
+                    Main.log("HTTP: " + http.getRequests() + " requests, " + http.getQueueDepth() + " queued, average wait "
+                        + (http.getWaitNanos() / requests / 1000) + "us, average service " + (http.getServiceNanos() / requests / 1000)
+                        + "us, slowest " + (http.getMaxNanos() / 1000000) + "ms.");
                 }
+
+                lastStats = now;
             }
 
+            long packets = Metrics.packetsForwarded.sum();
+            long bytes = Metrics.bytesForwarded.sum();
+            long elapsed = Math.max(now - lastTick, 1);
+            status = buildStatus(now, (packets - lastPackets) * 1000 / elapsed, (bytes - lastBytes) * 1000 / elapsed);
+            lastTick = now;
+            lastPackets = packets;
+            lastBytes = bytes;
+
             Main.status(
-                (connected ? "Connected. " : "Disconnected from master. ") +
-                clients.size() + " / " + maxclients + " players online."
+                (masterClient.isConnected() ? "Connected. " : "Disconnected from master. ") +
+                clients.size() + " / " + config.getMaxClients() + " players online."
             );
 
             try {
-                Thread.sleep(5000);
+                Thread.sleep(TICK - (System.currentTimeMillis() % TICK));
             } catch (InterruptedException e) {
                 return;
             }